@@ -0,0 +1,289 @@
+package com.metova.finiteflow.compiler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+
+/**
+ * Finds {@code @OnEnter} / {@code @OnExit} / {@code @Guard} methods and generates a {@code <Type>$$EventDispatcher} per listener class
+ * (implementing {@code com.metova.finiteflow.EventDispatcher}) that calls the methods directly through a switch over
+ * the dispatch index, so that FiniteFlow does not need {@code Method.invoke} for the class.
+ */
+public class EventDispatcherProcessor extends AbstractProcessor {
+
+    static final String ON_ENTER = "com.metova.finiteflow.OnEnter";
+    static final String ON_EXIT = "com.metova.finiteflow.OnExit";
+    static final String GUARD = "com.metova.finiteflow.Guard";
+    static final String EVENT_DISPATCHER = "com.metova.finiteflow.EventDispatcher";
+    static final String SUFFIX = "$$EventDispatcher";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+
+        Set<String> types = new LinkedHashSet<>();
+        types.add(ON_ENTER);
+        types.add(ON_EXIT);
+        types.add(GUARD);
+        return types;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+        Map<TypeElement, ListenerModel> listeners = new LinkedHashMap<>();
+        Set<TypeElement> invalid = new HashSet<>();
+
+        for(TypeElement annotation : annotations) {
+
+            for(Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+
+                if(element.getKind() != ElementKind.METHOD) { continue; }
+
+                TypeElement type = (TypeElement) element.getEnclosingElement();
+                if(!listeners.containsKey(type)) {
+                    listeners.put(type, new ListenerModel());
+                }
+
+                if(!isValid((ExecutableElement) element, type)) {
+                    invalid.add(type);
+                }
+            }
+        }
+
+        for(Map.Entry<TypeElement, ListenerModel> entry : listeners.entrySet()) {
+
+            if(invalid.contains(entry.getKey())) { continue; }
+
+            ListenerModel model = readListener(entry.getKey(), entry.getValue());
+            writeDispatcher(entry.getKey(), model);
+        }
+
+        return false;
+    }
+
+
+    // region Model
+    private static class ListenerModel {
+
+        final List<String> mOnEnterStates = new ArrayList<>();
+        final List<String> mOnEnterMethods = new ArrayList<>();
+        final List<String> mOnExitStates = new ArrayList<>();
+        final List<String> mOnExitMethods = new ArrayList<>();
+        final List<String> mGuardTransitions = new ArrayList<>();
+        final List<String> mGuardMethods = new ArrayList<>();
+    }
+
+    /**
+     * Generated code calls the methods from the same package, so they (and their class) must be reachable and take no arguments
+     * (guards must also return boolean). No dispatcher is generated for a class with private event methods or a private (enclosing)
+     * class: it falls back to reflection at runtime, which can call them.
+     */
+    private boolean isValid(ExecutableElement method, TypeElement type) {
+
+        Messager messager = processingEnv.getMessager();
+        boolean valid = true;
+
+        if(method.getModifiers().contains(Modifier.PRIVATE)) {
+            messager.printMessage(Diagnostic.Kind.WARNING, "Private event method, " + type.getSimpleName() + " will be dispatched via reflection", method);
+            valid = false;
+        }
+
+        if(!method.getParameters().isEmpty()) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Event methods must not have parameters", method);
+            valid = false;
+        }
+
+        if(ProcessorUtil.getAnnotation(method, GUARD) != null && method.getReturnType().getKind() != TypeKind.BOOLEAN) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Guard methods must return boolean", method);
+            valid = false;
+        }
+
+        for(Element enclosing = type; enclosing instanceof TypeElement; enclosing = enclosing.getEnclosingElement()) {
+
+            if(enclosing.getModifiers().contains(Modifier.PRIVATE)) {
+                messager.printMessage(Diagnostic.Kind.WARNING, "Private class, " + type.getSimpleName() + " will be dispatched via reflection", method);
+                valid = false;
+                break;
+            }
+        }
+
+        return valid;
+    }
+
+    /**
+     * Collect the event methods of the type in declaration order (guards in the order of their names)
+     */
+    private ListenerModel readListener(TypeElement type, ListenerModel model) {
+
+        Messager messager = processingEnv.getMessager();
+
+        for(Element element : type.getEnclosedElements()) {
+
+            if(element.getKind() != ElementKind.METHOD) { continue; }
+
+            String methodName = element.getSimpleName().toString();
+
+            AnnotationMirror onEnter = ProcessorUtil.getAnnotation(element, ON_ENTER);
+            if(onEnter != null) {
+
+                String state = ProcessorUtil.getString(onEnter.getElementValues(), "state");
+                if(model.mOnEnterStates.contains(state)) {
+                    messager.printMessage(Diagnostic.Kind.WARNING, "OnEnter method for state " + state + " already exists, being overwritten...", element);
+                }
+                model.mOnEnterStates.add(state);
+                model.mOnEnterMethods.add(methodName);
+            }
+
+            AnnotationMirror onExit = ProcessorUtil.getAnnotation(element, ON_EXIT);
+            if(onExit != null) {
+
+                String state = ProcessorUtil.getString(onExit.getElementValues(), "state");
+                if(model.mOnExitStates.contains(state)) {
+                    messager.printMessage(Diagnostic.Kind.WARNING, "OnExit method for state " + state + " already exists, being overwritten...", element);
+                }
+                model.mOnExitStates.add(state);
+                model.mOnExitMethods.add(methodName);
+            }
+
+            AnnotationMirror guard = ProcessorUtil.getAnnotation(element, GUARD);
+            if(guard != null) {
+
+                // Ordered by method name, as found by reflection (declaration order is not available at runtime)
+                int index = 0;
+                while(index < model.mGuardMethods.size() && model.mGuardMethods.get(index).compareTo(methodName) <= 0) {
+                    index++;
+                }
+                model.mGuardTransitions.add(index * 2, ProcessorUtil.getString(guard.getElementValues(), "to"));
+                model.mGuardTransitions.add(index * 2, ProcessorUtil.getString(guard.getElementValues(), "from"));
+                model.mGuardMethods.add(index, methodName);
+            }
+        }
+
+        return model;
+    }
+    // endregion
+
+
+    // region Code generation
+    private void writeDispatcher(TypeElement type, ListenerModel model) {
+
+        Elements elements = processingEnv.getElementUtils();
+        String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        String className = ProcessorUtil.getBinarySimpleName(type, packageName) + SUFFIX;
+        String listenerType = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+
+        StringBuilder source = ProcessorUtil.startSource(packageName);
+        source.append("public final class ").append(className).append(" implements ").append(EVENT_DISPATCHER).append(" {\n\n")
+                .append("    private static final String[] ON_ENTER_STATES = ").append(arrayOf(model.mOnEnterStates)).append(";\n")
+                .append("    private static final String[] ON_ENTER_METHODS = ").append(arrayOf(model.mOnEnterMethods)).append(";\n")
+                .append("    private static final String[] ON_EXIT_STATES = ").append(arrayOf(model.mOnExitStates)).append(";\n")
+                .append("    private static final String[] ON_EXIT_METHODS = ").append(arrayOf(model.mOnExitMethods)).append(";\n")
+                .append("    private static final String[] GUARD_TRANSITIONS = ").append(arrayOf(model.mGuardTransitions)).append(";\n")
+                .append("    private static final String[] GUARD_METHODS = ").append(arrayOf(model.mGuardMethods)).append(";\n\n")
+                .append("    @Override\n")
+                .append("    public String[] getOnEnterStates() {\n")
+                .append("        return ON_ENTER_STATES;\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String[] getOnEnterMethods() {\n")
+                .append("        return ON_ENTER_METHODS;\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String[] getOnExitStates() {\n")
+                .append("        return ON_EXIT_STATES;\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String[] getOnExitMethods() {\n")
+                .append("        return ON_EXIT_METHODS;\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String[] getGuardTransitions() {\n")
+                .append("        return GUARD_TRANSITIONS;\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String[] getGuardMethods() {\n")
+                .append("        return GUARD_METHODS;\n")
+                .append("    }\n\n");
+        appendDispatch(source, "onEnter", "OnEnter", listenerType, model.mOnEnterMethods);
+        source.append("\n");
+        appendDispatch(source, "onExit", "OnExit", listenerType, model.mOnExitMethods);
+        source.append("\n");
+        appendGuard(source, listenerType, model.mGuardMethods);
+        source.append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        ProcessorUtil.writeSource(processingEnv, qualifiedName, type, source.toString());
+    }
+
+    private static void appendDispatch(StringBuilder source, String name, String annotation, String listenerType, List<String> methods) {
+
+        source.append("    @Override\n")
+                .append("    public void ").append(name).append("(Object target, int index) {\n");
+        if(!methods.isEmpty()) {
+            source.append("        ").append(listenerType).append(" listener = (").append(listenerType).append(") target;\n");
+        }
+        source.append("        switch (index) {\n");
+        for(int i = 0; i < methods.size(); i++) {
+            source.append("            case ").append(i).append(":\n")
+                    .append("                listener.").append(methods.get(i)).append("();\n")
+                    .append("                break;\n");
+        }
+        source.append("            default:\n")
+                .append("                throw new IllegalArgumentException(\"Unknown ").append(annotation).append(" index: \" + index);\n")
+                .append("        }\n")
+                .append("    }\n");
+    }
+
+    private static void appendGuard(StringBuilder source, String listenerType, List<String> methods) {
+
+        source.append("    @Override\n")
+                .append("    public boolean guard(Object target, int index) {\n");
+        if(!methods.isEmpty()) {
+            source.append("        ").append(listenerType).append(" listener = (").append(listenerType).append(") target;\n");
+        }
+        source.append("        switch (index) {\n");
+        for(int i = 0; i < methods.size(); i++) {
+            source.append("            case ").append(i).append(":\n")
+                    .append("                return listener.").append(methods.get(i)).append("();\n");
+        }
+        source.append("            default:\n")
+                .append("                throw new IllegalArgumentException(\"Unknown Guard index: \" + index);\n")
+                .append("        }\n")
+                .append("    }\n");
+    }
+
+    private String arrayOf(List<String> values) {
+
+        Elements elements = processingEnv.getElementUtils();
+        StringBuilder array = new StringBuilder("{ ");
+        for(int i = 0; i < values.size(); i++) {
+            if(i > 0) { array.append(", "); }
+            array.append(elements.getConstantExpression(values.get(i)));
+        }
+        return array.append(values.isEmpty() ? "}" : " }").toString();
+    }
+    // endregion
+}
@@ -0,0 +1,177 @@
+package com.metova.finiteflow.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+
+/**
+ * Reads {@code @Flow} / {@code @FlowTransition} at compile time and generates a pre-validated {@code <Type>$$Flow}
+ * definition (implementing {@code com.metova.finiteflow.GeneratedFlow}) that {@code FiniteFlow.flowFor} loads instead of
+ * reading the annotation at runtime. Unknown states in transitions / the initial state fail the build.
+ *
+ * Annotations are read by name (through their mirrors), so this module does not depend on the Android library.
+ */
+public class FlowProcessor extends AbstractProcessor {
+
+    static final String FLOW = "com.metova.finiteflow.Flow";
+    static final String GENERATED_FLOW = "com.metova.finiteflow.GeneratedFlow";
+    static final String SUFFIX = "$$Flow";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(FLOW);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+        TypeElement flowType = processingEnv.getElementUtils().getTypeElement(FLOW);
+        if(flowType == null) { return false; }
+
+        for(Element element : roundEnv.getElementsAnnotatedWith(flowType)) {
+
+            if(!(element instanceof TypeElement)) { continue; }
+
+            TypeElement type = (TypeElement) element;
+            AnnotationMirror flow = ProcessorUtil.getAnnotation(type, FLOW);
+            if(flow == null) { continue; }
+
+            FlowModel model = readFlow(type, flow);
+            if(model != null) {
+                writeFlow(type, model);
+            }
+        }
+
+        return false;
+    }
+
+
+    // region Model
+    private static class FlowModel {
+
+        final Set<String> mStates = new LinkedHashSet<>();
+        String mInitialState;
+        final List<String[]> mTransitions = new ArrayList<>();
+    }
+
+    /**
+     * @return The validated flow definition, or null if errors were reported
+     */
+    private FlowModel readFlow(TypeElement type, AnnotationMirror flow) {
+
+        Messager messager = processingEnv.getMessager();
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values = flow.getElementValues();
+
+        FlowModel model = new FlowModel();
+        boolean valid = true;
+
+        for(AnnotationValue value : ProcessorUtil.getList(values, "states")) {
+
+            String state = (String) value.getValue();
+            if(!model.mStates.add(state)) {
+                messager.printMessage(Diagnostic.Kind.WARNING, "Duplicate state not added: " + state, type, flow);
+            }
+        }
+
+        model.mInitialState = ProcessorUtil.getString(values, "initialState");
+        if(!model.mStates.contains(model.mInitialState)) {
+
+            messager.printMessage(Diagnostic.Kind.ERROR, "Initial state \"" + model.mInitialState + "\" is not one of the flow's states", type, flow);
+            valid = false;
+        }
+
+        Set<String> transitionNames = new LinkedHashSet<>();
+        for(AnnotationValue value : ProcessorUtil.getList(values, "transitions")) {
+
+            AnnotationMirror transition = (AnnotationMirror) value.getValue();
+            Map<? extends ExecutableElement, ? extends AnnotationValue> transitionValues = transition.getElementValues();
+            String from = ProcessorUtil.getString(transitionValues, "from");
+            String to = ProcessorUtil.getString(transitionValues, "to");
+
+            if(!model.mStates.contains(from) || !model.mStates.contains(to)) {
+
+                messager.printMessage(Diagnostic.Kind.ERROR, "Transition " + from + " -> " + to + " references a state that is not one of the flow's states", type, flow, value);
+                valid = false;
+                continue;
+            }
+
+            // Same key as Transition.equals (the pair, not the implied name)
+            if(!transitionNames.add(from + '\u0000' + to)) {
+
+                messager.printMessage(Diagnostic.Kind.WARNING, "Duplicate transition not added: " + from + " -> " + to, type, flow, value);
+                continue;
+            }
+
+            model.mTransitions.add(new String[] { from, to });
+        }
+
+        return valid ? model : null;
+    }
+    // endregion
+
+
+    // region Code generation
+    private void writeFlow(TypeElement type, FlowModel model) {
+
+        Elements elements = processingEnv.getElementUtils();
+        String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        String className = ProcessorUtil.getBinarySimpleName(type, packageName) + SUFFIX;
+
+        StringBuilder states = new StringBuilder();
+        for(String state : model.mStates) {
+            if(states.length() > 0) { states.append(", "); }
+            states.append(elements.getConstantExpression(state));
+        }
+
+        StringBuilder transitions = new StringBuilder();
+        for(String[] transition : model.mTransitions) {
+            transitions.append("\n            ")
+                    .append(elements.getConstantExpression(transition[0]))
+                    .append(", ")
+                    .append(elements.getConstantExpression(transition[1]))
+                    .append(',');
+        }
+
+        StringBuilder source = ProcessorUtil.startSource(packageName);
+        source.append("public final class ").append(className).append(" implements ").append(GENERATED_FLOW).append(" {\n\n")
+                .append("    private static final String[] STATES = { ").append(states).append(" };\n\n")
+                .append("    private static final String[] TRANSITIONS = {").append(transitions).append("\n    };\n\n")
+                .append("    @Override\n")
+                .append("    public String[] getStates() {\n")
+                .append("        return STATES;\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String getInitialState() {\n")
+                .append("        return ").append(elements.getConstantExpression(model.mInitialState)).append(";\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String[] getTransitions() {\n")
+                .append("        return TRANSITIONS;\n")
+                .append("    }\n")
+                .append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        ProcessorUtil.writeSource(processingEnv, qualifiedName, type, source.toString());
+    }
+    // endregion
+}
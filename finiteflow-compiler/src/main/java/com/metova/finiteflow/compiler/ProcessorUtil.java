@@ -0,0 +1,100 @@
+package com.metova.finiteflow.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Helpers for reading annotation mirrors / naming generated classes
+ */
+final class ProcessorUtil {
+
+    private ProcessorUtil() {}
+
+    static AnnotationMirror getAnnotation(Element element, String annotationName) {
+
+        for(AnnotationMirror mirror : element.getAnnotationMirrors()) {
+
+            TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+            if(annotationType.getQualifiedName().contentEquals(annotationName)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    static AnnotationValue getValue(Map<? extends ExecutableElement, ? extends AnnotationValue> values, String name) {
+
+        for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet()) {
+
+            if(entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    static String getString(Map<? extends ExecutableElement, ? extends AnnotationValue> values, String name) {
+
+        AnnotationValue value = getValue(values, name);
+        return value != null ? (String) value.getValue() : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<? extends AnnotationValue> getList(Map<? extends ExecutableElement, ? extends AnnotationValue> values, String name) {
+
+        AnnotationValue value = getValue(values, name);
+        return value != null ? (List<? extends AnnotationValue>) value.getValue() : Collections.<AnnotationValue>emptyList();
+    }
+
+    /**
+     * @return The class name without its package, using '$' for nested classes (so that it matches Class.getName() at runtime)
+     */
+    static String getBinarySimpleName(TypeElement type, String packageName) {
+
+        String qualifiedName = type.getQualifiedName().toString();
+        String name = packageName.isEmpty() ? qualifiedName : qualifiedName.substring(packageName.length() + 1);
+        return name.replace('.', '$');
+    }
+
+    /**
+     * @return A builder with the generated-code header / package declaration already written
+     */
+    static StringBuilder startSource(String packageName) {
+
+        StringBuilder source = new StringBuilder()
+                .append("// Generated code from FiniteFlow. Do not modify!\n");
+        if(!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        return source;
+    }
+
+    static void writeSource(ProcessingEnvironment processingEnv, String qualifiedName, TypeElement type, String source) {
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+            Writer writer = file.openWriter();
+            try {
+                writer.write(source);
+            }
+            finally {
+                writer.close();
+            }
+        }
+        catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write " + qualifiedName + ": " + e.getMessage(), type);
+        }
+    }
+}
@@ -15,3 +15,13 @@
 #-keepclassmembers class fqcn.of.javascript.interface.for.webview {
 #   public *;
 #}
+
+# Keep the classes generated by finiteflow-compiler (loaded by name)
+-keep class **$$Flow { *; }
+-keepnames @com.metova.finiteflow.Flow class *
+-keep class **$$EventDispatcher { *; }
+-keepclasseswithmembernames class * { @com.metova.finiteflow.OnEnter <methods>; }
+-keepclasseswithmembernames class * { @com.metova.finiteflow.OnExit <methods>; }
+
+# Guard methods are called by reflection when a class has no generated dispatcher, so they must not be removed or renamed
+-keepclassmembers class * { @com.metova.finiteflow.Guard <methods>; }
@@ -0,0 +1,71 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+
+/**
+ * Rough comparison of the ways an event method can be called (results are logged, not asserted)
+ */
+public class EventDispatchBenchmark extends TestCase {
+
+    private static final String TAG = EventDispatchBenchmark.class.getSimpleName();
+
+    private static final int WARMUP = 50000;
+    private static final int ITERATIONS = 1000000;
+
+    public static class Listener {
+
+        int mCount;
+
+        @OnEnter(state = "A")
+        public void onEnterA() {
+            mCount++;
+        }
+    }
+
+    public void testDispatchCost() throws Throwable {
+
+        Listener listener = new Listener();
+        Method method = Listener.class.getMethod("onEnterA");
+
+        EventDispatcher dispatcher = EventDispatchers.find(Listener.class);
+        assertNotNull(dispatcher);
+
+        EventHandler generated = new GeneratedEventHandler(dispatcher, 0, true);
+        EventHandler prepared = ReflectiveEventHandler.get(Listener.class.getMethod("onEnterA"));
+
+        long generatedNs = 0, preparedNs = 0, invokeNs = 0;
+        for(int round = 0; round < 2; round++) {
+
+            // First round is warmup
+            int iterations = round == 0 ? WARMUP : ITERATIONS;
+
+            long start = System.nanoTime();
+            for(int i = 0; i < iterations; i++) {
+                generated.call(listener);
+            }
+            generatedNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i = 0; i < iterations; i++) {
+                prepared.call(listener);
+            }
+            preparedNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i = 0; i < iterations; i++) {
+                method.invoke(listener);
+            }
+            invokeNs = System.nanoTime() - start;
+        }
+
+        assertEquals(3 * (WARMUP + ITERATIONS), listener.mCount);
+
+        Log.i(TAG, "Generated dispatcher: " + (generatedNs / (double) ITERATIONS) + " ns/call");
+        Log.i(TAG, "Prepared reflection: " + (preparedNs / (double) ITERATIONS) + " ns/call");
+        Log.i(TAG, "Method.invoke: " + (invokeNs / (double) ITERATIONS) + " ns/call");
+    }
+}
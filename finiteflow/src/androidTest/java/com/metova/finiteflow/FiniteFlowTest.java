@@ -1,8 +1,24 @@
 package com.metova.finiteflow;
 
+import android.os.Debug;
+import android.os.Looper;
+
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FiniteFlowTest extends TestCase {
 
@@ -75,6 +91,42 @@ public class FiniteFlowTest extends TestCase {
         assertNull(FiniteFlow.getFiniteFlowInstances());
     }
 
+    public void testConcurrentInstance() throws Throwable {
+
+        final int threadCount = 8;
+        final FiniteFlow[] instances = new FiniteFlow[threadCount];
+        final CountDownLatch start = new CountDownLatch(1);
+
+        // Every thread asks for the same (new) instance at once
+        Thread[] threads = new Thread[threadCount];
+        for(int i = 0; i < threadCount; i++) {
+
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        instances[index] = FiniteFlow.getInstance(TEST_INSTANCE_NAME);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, FiniteFlow.getFiniteFlowInstances().size());
+        for(FiniteFlow instance : instances) {
+            assertSame(FiniteFlow.getInstance(TEST_INSTANCE_NAME), instance);
+        }
+    }
+
     public void testAddStates() throws Throwable {
 
         assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStates());
@@ -180,6 +232,7 @@ public class FiniteFlowTest extends TestCase {
         assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStateEventMap().get("A").get(0).getInstance());
         assertEquals(FiniteFlowTest.class, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStateEventMap().get("A").get(0).getStateClass());
 
+        // Events are called through the generated dispatcher (see testGeneratedDispatch), Methods are still reported
         Method onEnterMethod = FiniteFlowTest.class.getMethod("onEnter");
         Method onExitMethod = FiniteFlowTest.class.getMethod("onExit");
         assertEquals(onEnterMethod, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStateEventMap().get("A").get(0).getStateOnEnterMethod());
@@ -195,6 +248,142 @@ public class FiniteFlowTest extends TestCase {
         assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getEventClassInstances().get(FiniteFlowTest.class));
     }
 
+    public void testListenerInfoShared() throws Throwable {
+
+        // Scanned once per class and shared
+        ListenerInfo listenerInfo = ListenerInfo.get(FiniteFlowTest.class);
+        assertSame(listenerInfo, ListenerInfo.get(FiniteFlowTest.class));
+
+        assertEquals(2, listenerInfo.getStateEvents().size());
+        assertNotNull(listenerInfo.getStateEvents().get("A").getOnEnterHandler());
+        assertNotNull(listenerInfo.getStateEvents().get("A").getOnExitHandler());
+        assertNull(listenerInfo.getStateEvents().get("TestState").getOnEnterHandler());
+        assertNotNull(listenerInfo.getStateEvents().get("TestState").getOnExitHandler());
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .setInitialState("A")
+                .setEventClasses(FiniteFlowTest.class);
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO)
+                .addState("A")
+                .addState("C")
+                .addTransition("A", "C")
+                .setInitialState("A")
+                .setEventClasses(FiniteFlowTest.class);
+
+        // States the flow does not have are skipped
+        assertFalse(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStateEventMap().containsKey("TestState"));
+
+        // Flows only differ by the registered instance
+        assertSame(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStateEventMap().get("A").get(0).getStateOnEnterMethod(),
+                FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).getStateEventMap().get("A").get(0).getStateOnEnterMethod());
+    }
+
+    public static class DispatchListener {
+
+        final List<String> mEvents = new ArrayList<>();
+
+        @OnEnter(state = "A")
+        public void onEnterA() {
+            mEvents.add("enter A");
+        }
+
+        @OnExit(state = "A")
+        public void onExitA() {
+            mEvents.add("exit A");
+        }
+
+        @OnEnter(state = "B")
+        public void onEnterB() {
+            mEvents.add("enter B");
+        }
+
+        @OnExit(state = "B")
+        public void onExitB() {
+            mEvents.add("exit B");
+        }
+
+        @OnEnter(state = "C")
+        public void onEnterC() {
+            throw new IllegalStateException("Failing event");
+        }
+    }
+
+    public static class PrivateMethodListener {
+
+        int mEnterBCount;
+
+        @OnEnter(state = "B")
+        private void onEnterB() {
+            mEnterBCount++;
+        }
+    }
+
+    private static FiniteFlow setupDispatchFlow(DispatchListener listener) throws Throwable {
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addState("C")
+                .addTransition("A", "B")
+                .addTransition("B", "C")
+                .setInitialState("A")
+                .setEventClasses(DispatchListener.class);
+        flow.register(listener);
+        return flow;
+    }
+
+    public void testGeneratedDispatch() throws Throwable {
+
+        // androidTest runs the annotation processor, each dispatch index calls its own method
+        EventDispatcher dispatcher = EventDispatchers.find(DispatchListener.class);
+        assertNotNull(dispatcher);
+        assertEquals(Arrays.asList("A", "B", "C"), Arrays.asList(dispatcher.getOnEnterStates()));
+        assertEquals(Arrays.asList("A", "B"), Arrays.asList(dispatcher.getOnExitStates()));
+
+        DispatchListener listener = new DispatchListener();
+        dispatcher.onEnter(listener, 1);
+        dispatcher.onExit(listener, 0);
+        assertEquals(Arrays.asList("enter B", "exit A"), listener.mEvents);
+
+        // Through the flow, in both directions
+        listener.mEvents.clear();
+        FiniteFlow flow = setupDispatchFlow(listener);
+        flow.moveToState("B");
+        assertEquals(Arrays.asList("exit A", "enter B"), listener.mEvents);
+
+        flow.moveToPreviousState();
+        assertEquals(Arrays.asList("exit A", "enter B", "exit B", "enter A"), listener.mEvents);
+
+        // No dispatcher is generated for private event methods (only a warning), they are called via reflection
+        assertNull(EventDispatchers.find(PrivateMethodListener.class));
+
+        PrivateMethodListener privateListener = new PrivateMethodListener();
+        flow.setEventClasses(DispatchListener.class, PrivateMethodListener.class).register(privateListener);
+        flow.moveToState("B");
+        assertEquals(1, privateListener.mEnterBCount);
+    }
+
+    public void testThrowingEventHandler() throws Throwable {
+
+        DispatchListener listener = new DispatchListener();
+        FiniteFlow flow = setupDispatchFlow(listener);
+
+        // The exception is logged, the transition is complete (state and history)
+        flow.moveToState("B").moveToState("C");
+        assertEquals("C", flow.getCurrentState());
+        assertEquals("B", flow.getTransitionHistory().peek().getFromState());
+
+        flow.moveToPreviousState();
+        assertEquals("B", flow.getCurrentState());
+
+        // Same without a generated dispatcher
+        ReflectiveEventHandler.get(DispatchListener.class.getMethod("onEnterC")).call(listener);
+    }
+
     public void testApplyTransition() throws Throwable {
 
         Exception e = null;
@@ -293,6 +482,439 @@ public class FiniteFlowTest extends TestCase {
         assertEquals("C", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
     }
 
+    public void testTryTransitions() throws Throwable {
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME);
+        assertEquals(FiniteFlow.RESULT_NOT_INITIALIZED, flow.tryMoveToState("A"));
+        assertFalse(flow.canMoveToState("A"));
+
+        flow.addState("A")
+                .addState("B")
+                .addState("C")
+                .addTransition("A", "B")
+                .addTransition("B", "C")
+                .setInitialState("A");
+
+        assertEquals(FiniteFlow.RESULT_NO_HISTORY, flow.tryMoveToPreviousState());
+        assertFalse(flow.canMoveToState("C"));
+        assertEquals(FiniteFlow.RESULT_NOT_ALLOWED, flow.tryMoveToState("C"));
+        assertEquals(FiniteFlow.RESULT_NOT_ALLOWED, flow.tryApplyTransition("B_C"));
+        assertEquals("A", flow.getCurrentState());
+
+        assertTrue(flow.canMoveToState("B"));
+        assertEquals(FiniteFlow.RESULT_OK, flow.tryMoveToState("B"));
+        assertEquals(FiniteFlow.RESULT_OK, flow.tryApplyTransition("B_C"));
+        assertEquals("C", flow.getCurrentState());
+        assertEquals(FiniteFlow.RESULT_OK, flow.tryMoveToPreviousState());
+        assertEquals("B", flow.getCurrentState());
+
+        // Stackless exceptions
+        FiniteFlow.setStacklessExceptions(true);
+        try {
+            flow.moveToState("A");
+            fail();
+        }
+        catch (InvalidStateChangeException e) {
+            assertEquals(0, e.getStackTrace().length);
+        }
+        finally {
+            FiniteFlow.setStacklessExceptions(false);
+        }
+    }
+
+    public static class GuardListener {
+
+        boolean mOpen;
+        int mChecks;
+
+        @Guard(from = "A", to = "B")
+        public boolean isOpen() {
+            mChecks++;
+            return mOpen;
+        }
+    }
+
+    public static class OrderedGuardListener {
+
+        final List<String> mChecks = new ArrayList<>();
+
+        @Guard(from = "A", to = "B")
+        public boolean zeta() {
+            mChecks.add("zeta");
+            return true;
+        }
+
+        @Guard(from = "A", to = "B")
+        public boolean alpha() {
+            mChecks.add("alpha");
+            return true;
+        }
+    }
+
+    /**
+     * Same guards, called through reflection (a private method keeps the processor from generating a dispatcher)
+     */
+    public static class ReflectiveOrderedGuardListener {
+
+        final List<String> mChecks = new ArrayList<>();
+
+        @Guard(from = "A", to = "B")
+        public boolean zeta() {
+            mChecks.add("zeta");
+            return true;
+        }
+
+        @Guard(from = "A", to = "B")
+        private boolean alpha() {
+            mChecks.add("alpha");
+            return true;
+        }
+    }
+
+    public void testGuards() throws Throwable {
+
+        final boolean[] allowed = { true };
+        TransitionGuard guard = new TransitionGuard() {
+            @Override
+            public boolean isAllowed(FiniteFlow flow) {
+                return allowed[0];
+            }
+        };
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addState("C")
+                .addTransition("A", "B")
+                .addTransition("B", "C")
+                .setInitialState("A")
+                .addGuard("A", "B", guard)
+                .setEventClasses(GuardListener.class);
+
+        // Guard of a transition that does not exist
+        Exception e = null;
+        try {
+            flow.addGuard("A", "C", guard);
+        }
+        catch (FlowInitializationException ex) {
+            e = ex;
+        }
+
+        assertNotNull(e);
+        e = null;
+
+        // Guard methods do not apply without a registered instance
+        assertTrue(flow.canMoveToState("B"));
+
+        GuardListener listener = new GuardListener();
+        flow.register(listener);
+
+        assertFalse(flow.canMoveToState("B"));
+        assertEquals(FiniteFlow.RESULT_GUARDED, flow.tryMoveToState("B"));
+        try {
+            flow.moveToState("B");
+        }
+        catch (InvalidStateChangeException ex) {
+            e = ex;
+        }
+
+        assertNotNull(e);
+        assertEquals("A", flow.getCurrentState());
+
+        // Guards are checked in order, stopping at the first that does not allow the transition
+        allowed[0] = false;
+        listener.mChecks = 0;
+        assertEquals(FiniteFlow.RESULT_GUARDED, flow.tryApplyTransition("A_B"));
+        assertEquals(0, listener.mChecks);
+
+        // A path is not applied if the guards of one of its steps do not allow it
+        allowed[0] = true;
+        try {
+            flow.moveThrough("B", "C");
+            fail();
+        }
+        catch (InvalidStateChangeException ex) {
+            assertEquals("A", flow.getCurrentState());
+        }
+
+        listener.mOpen = true;
+        flow.moveToState("B");
+        assertEquals("B", flow.getCurrentState());
+
+        // Moving back is not guarded
+        listener.mOpen = false;
+        flow.moveToPreviousState();
+        assertEquals("A", flow.getCurrentState());
+
+        // Guard methods of a class are checked in the order of their names, with or without a generated dispatcher
+        OrderedGuardListener ordered = new OrderedGuardListener();
+        ReflectiveOrderedGuardListener reflective = new ReflectiveOrderedGuardListener();
+        FiniteFlow orderedFlow = FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .setInitialState("A")
+                .setEventClasses(OrderedGuardListener.class, ReflectiveOrderedGuardListener.class);
+        orderedFlow.register(ordered);
+        orderedFlow.register(reflective);
+
+        assertNotNull(EventDispatchers.find(OrderedGuardListener.class));
+        assertNull(EventDispatchers.find(ReflectiveOrderedGuardListener.class));
+        assertTrue(orderedFlow.canMoveToState("B"));
+        assertEquals(Arrays.asList("alpha", "zeta"), ordered.mChecks);
+        assertEquals(Arrays.asList("alpha", "zeta"), reflective.mChecks);
+    }
+
+    public static class ThrowingGuardListener {
+
+        @Guard(from = "A", to = "B")
+        public boolean isOpen() {
+            throw new IllegalStateException("Guard");
+        }
+    }
+
+    public void testThrowingGuard() throws Throwable {
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .setInitialState("A")
+                .setEventClasses(ThrowingGuardListener.class);
+
+        ThrowingGuardListener listener = new ThrowingGuardListener();
+        flow.register(listener);
+
+        // The exception is logged and refuses the transition
+        assertFalse(flow.canMoveToState("B"));
+        assertEquals(FiniteFlow.RESULT_GUARDED, flow.tryMoveToState("B"));
+        assertEquals("A", flow.getCurrentState());
+
+        // Same without a generated dispatcher
+        assertFalse(new ReflectiveGuardHandler(ThrowingGuardListener.class.getMethod("isOpen")).check(listener));
+    }
+
+    public void testMoveThrough() throws Throwable {
+
+        for(boolean concurrent : new boolean[] { false, true }) {
+
+            FiniteFlow.clearInstance(TEST_INSTANCE_NAME);
+            FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                    .addState("A")
+                    .addState("B")
+                    .addState("C")
+                    .addTransition("A", "B")
+                    .addTransition("B", "B")
+                    .addTransition("B", "C")
+                    .setInitialState("A")
+                    .setConcurrent(concurrent);
+
+            // Invalid last step (no transition from C to A), nothing is applied
+            Exception e = null;
+            try {
+                flow.moveThrough("B", "C", "A");
+            }
+            catch (InvalidStateChangeException ex) {
+                e = ex;
+            }
+
+            assertNotNull(e);
+            assertEquals("A", flow.getCurrentState());
+            assertTrue(flow.getTransitionHistory() == null || flow.getTransitionHistory().isEmpty());
+
+            // Whole path, every step is in the history
+            flow.moveThrough("B", "B", "C");
+            assertEquals("C", flow.getCurrentState());
+            assertEquals(3, flow.getTransitionHistory().size());
+            assertEquals("B", flow.getTransitionHistory().peek().getFromState());
+
+            flow.moveToPreviousState();
+            assertEquals("B", flow.getCurrentState());
+        }
+
+        // Events are called once the whole path is applied, an event that throws does not stop it
+        FiniteFlow.clearInstance(TEST_INSTANCE_NAME);
+        DispatchListener listener = new DispatchListener();
+        FiniteFlow flow = setupDispatchFlow(listener);
+        flow.moveThrough("B", "C");
+
+        assertEquals("C", flow.getCurrentState());
+        assertEquals(2, flow.getTransitionHistory().size());
+        assertEquals(Arrays.asList("exit A", "enter B", "exit B"), listener.mEvents);
+    }
+
+    public void testAllowedNextStates() throws Throwable {
+
+        // Before proper setup
+        assertTrue(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getAllowedNextStates().isEmpty());
+
+        // Setup
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addState("C")
+                .addTransition("A", "B")
+                .addTransition("B", "B")
+                .addTransition("B", "C")
+                .addTransition("B", "A")
+                .setInitialState("A");
+
+        assertEquals(1, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getAllowedNextStates().size());
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getAllowedNextStates().get(0));
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+
+        // Declaration order is kept
+        assertEquals(3, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getAllowedNextStates().size());
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getAllowedNextStates().get(0));
+        assertEquals("C", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getAllowedNextStates().get(1));
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getAllowedNextStates().get(2));
+
+        // Adding a transition after moving must be picked up
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("C");
+        assertTrue(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getAllowedNextStates().isEmpty());
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).addTransition("C", "A");
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getAllowedNextStates().get(0));
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).applyTransition("C_A");
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+    }
+
+    @Flow(states = {"A", "B", "C"},
+            initialState = "A",
+            transitions = {
+                    @FlowTransition(from = "A", to = "B"),
+                    @FlowTransition(from = "B", to = "C"),
+                    @FlowTransition(from = "C", to = "A")
+            })
+    static class AnnotatedFlow {}
+
+    @Flow(states = {"A", "B"}, initialState = "A", transitions = {})
+    static class TransitionlessFlow {}
+
+    public void testFlowFor() throws Throwable {
+
+        // The annotation processor runs for androidTest, so the generated definition is used
+        assertNotNull(GeneratedFlows.find(AnnotatedFlow.class));
+        assertNull(GeneratedFlows.find(FiniteFlowTest.class));
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).flowFor(new AnnotatedFlow());
+
+        assertEquals(3, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStates().size());
+        assertEquals(3, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitions().size());
+        assertEquals("B_C", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitions().get(1).getTransitionName());
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B").moveToState("C").moveToState("A");
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+
+        // Copied from the definition, so the flow can still be extended
+        assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getDefinition());
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).addState("D").addTransition("A", "D").moveToState("D");
+        assertEquals("D", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+        assertEquals(3, FlowDefinition.forFlow(AnnotatedFlow.class).getStates().size());
+
+        // States without transitions are accepted (with or without the annotation processor), transitions can be added later
+        FiniteFlow.clearInstance(TEST_INSTANCE_NAME);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).flowFor(new TransitionlessFlow()).addTransition("A", "B").moveToState("B");
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+        assertTrue(new FlowDefinition.Builder().addState("A").setInitialState("A").buildAnnotated().getTransitions().isEmpty());
+
+        // Not annotated
+        Exception e = null;
+        try {
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).flowFor(this);
+        }
+        catch (FlowInitializationException ex) {
+            e = ex;
+        }
+
+        assertNotNull(e);
+    }
+
+    public void testFlowDefinition() throws Throwable {
+
+        Exception e = null;
+
+        // Validated once when built
+        try {
+            new FlowDefinition.Builder().addState("A").addTransition("A", "B").setInitialState("A").build();
+        }
+        catch (FlowInitializationException ex) {
+            e = ex;
+        }
+
+        assertNotNull(e);
+        e = null;
+
+        try {
+            new FlowDefinition.Builder().addState("A").addTransition("A", "A").setInitialState("B").build();
+        }
+        catch (FlowInvalidException ex) {
+            e = ex;
+        }
+
+        assertNotNull(e);
+        e = null;
+
+        FlowDefinition definition = new FlowDefinition.Builder()
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A")
+                .build();
+
+        // Shared between instances, each keeping its own current state / history
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).setDefinition(definition).setEventClasses(FiniteFlowTest.class);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).setDefinition(definition);
+
+        assertSame(definition.getStates(), FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStates());
+        assertSame(definition.getStates(), FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).getStates());
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(this);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+
+        assertTrue(onExitAHit);
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).getCurrentState());
+        assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).getTransitionHistory());
+
+        // Cannot be modified once defined
+        try {
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).addState("C");
+        }
+        catch (IllegalStateException ex) {
+            e = ex;
+        }
+
+        assertNotNull(e);
+
+        // Re-initializing keeps registered listeners
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).setDefinition(definition);
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+        assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory());
+
+        onExitAHit = false;
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+        assertTrue(onExitAHit);
+
+        // Annotated classes share a definition as well
+        assertSame(FlowDefinition.forFlow(AnnotatedFlow.class), FlowDefinition.forFlow(AnnotatedFlow.class));
+
+        // The definition is not serialized, so a deserialized flow can be extended
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(FiniteFlow.getInstance(TEST_INSTANCE_NAME));
+        out.close();
+        FiniteFlow finiteFlow = (FiniteFlow) new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray())).readObject();
+
+        assertEquals("B", finiteFlow.getCurrentState());
+        finiteFlow.addState("C").addTransition("B", "C").moveToState("C");
+        assertEquals("C", finiteFlow.getCurrentState());
+        assertEquals(2, definition.getStates().size());
+    }
+
     public void testTransitionHistory() throws Throwable {
 
         Exception e = null;
@@ -364,6 +986,73 @@ public class FiniteFlowTest extends TestCase {
         e = null;
     }
 
+    public void testHistoryPolicy() throws Throwable {
+
+        // Setup
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addState("C")
+                .addState("D")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .addTransition("B", "C")
+                .addTransition("C", "D")
+                .addTransition("D", "D")
+                .setInitialState("A")
+                .setHistoryCapacity(2)
+                .setCollapseSelfLoops(true)
+                .setCollapseCycles(true);
+
+        // Moving back and forth / staying in a state is not recorded
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B").moveToState("A");
+        assertTrue(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().isEmpty());
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B").moveToState("C").moveToState("D").moveToState("D").moveToState("D");
+
+        // Only the latest 2 transitions are kept
+        assertEquals(2, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().size());
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().get(0).getFromState());
+        assertEquals("D", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().peek().getToState());
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToPreviousState().moveToPreviousState();
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+
+        Exception e = null;
+        try {
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToPreviousState();
+        }
+        catch (FlowInvalidException ex) {
+            e = ex;
+        }
+
+        assertNotNull(e);
+
+        // Same policy with lock-free transitions
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).setConcurrent(true);
+        for(int i = 0; i < 5; i++) {
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("C").moveToState("D").moveToState("D");
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToPreviousState().moveToPreviousState();
+        }
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("A").moveToState("B").moveToState("C").moveToState("D");
+
+        assertEquals(2, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().size());
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().get(0).getFromState());
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToPreviousState().moveToPreviousState();
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+
+        // Not past the capacity, even if the dropped transitions are not trimmed yet
+        assertEquals(FiniteFlow.RESULT_NO_HISTORY, FiniteFlow.getInstance(TEST_INSTANCE_NAME).tryMoveToPreviousState());
+        assertTrue(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().isEmpty());
+
+        // Lowering the capacity drops the oldest transitions right away
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("C").moveToState("D").setHistoryCapacity(1);
+        assertEquals(1, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().size());
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToPreviousState();
+        assertEquals(FiniteFlow.RESULT_NO_HISTORY, FiniteFlow.getInstance(TEST_INSTANCE_NAME).tryMoveToPreviousState());
+        assertEquals("C", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+    }
+
     public void testEventsCalled() throws Throwable {
 
         // Setup
@@ -416,6 +1105,598 @@ public class FiniteFlowTest extends TestCase {
         assertFalse(onExitAHit);
     }
 
+    public void testPreviousStateEvents() throws Throwable {
+
+        // Setup
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("TestState")
+                .addTransition("A", "TestState")
+                .setInitialState("A")
+                .setEventClasses(FiniteFlowTest.class, TestUtil.class);
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(this);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(mTestUtil);
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("TestState");
+
+        assertTrue(onExitAHit);
+        assertTrue(mTestUtil.isTestStateHit());
+        assertFalse(onEnterAHit);
+        assertFalse(onExitTestStateHit);
+
+        onExitAHit = false;
+        mTestUtil.setTestStateHit(false);
+
+        // Moving back through the history exits TestState and enters A
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToPreviousState();
+
+        assertTrue(onExitTestStateHit);
+        assertTrue(onEnterAHit);
+        assertFalse(onExitAHit);
+        assertFalse(mTestUtil.isTestStateHit());
+    }
+
+    public static class CountingListener {
+
+        int mEnterBCount, mExitACount;
+
+        @OnEnter(state = "B")
+        public void onEnterB() {
+            mEnterBCount++;
+        }
+
+        @OnExit(state = "A")
+        public void onExitA() {
+            mExitACount++;
+        }
+    }
+
+    public void testEventFanOut() throws Throwable {
+
+        // Setup
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A")
+                .setEventFanOut(true)
+                .setEventClasses(FiniteFlowTest.class, CountingListener.class);
+
+        CountingListener first = new CountingListener();
+        CountingListener second = new CountingListener();
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(this);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(first);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(second);
+
+        // Every registered listener of both classes is called
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+
+        assertTrue(onExitAHit);
+        assertEquals(1, first.mExitACount);
+        assertEquals(1, first.mEnterBCount);
+        assertEquals(1, second.mExitACount);
+        assertEquals(1, second.mEnterBCount);
+
+        // Unregistering only removes that instance
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).unregister(first);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("A");
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+
+        assertEquals(1, first.mExitACount);
+        assertEquals(1, first.mEnterBCount);
+        assertEquals(2, second.mExitACount);
+        assertEquals(2, second.mEnterBCount);
+
+        // Switching back only calls the last registered instance
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).setEventFanOut(false);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(first);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("A");
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+
+        assertEquals(2, first.mExitACount);
+        assertEquals(2, first.mEnterBCount);
+        assertEquals(2, second.mExitACount);
+        assertEquals(2, second.mEnterBCount);
+
+        // Unregistering one of two instances of a class keeps the other one (its guards, and the flow from being passivated)
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .setInitialState("A")
+                .setEventFanOut(true)
+                .setEventClasses(GuardListener.class);
+
+        GuardListener open = new GuardListener();
+        open.mOpen = true;
+        GuardListener closed = new GuardListener();
+        flow.register(closed);
+        flow.register(open);
+        flow.unregister(open);
+
+        assertTrue(flow.hasRegisteredListeners());
+        assertFalse(flow.canMoveToState("B"));
+
+        // Rebuilt from every registered instance
+        flow.register(open);
+        flow.unregister(closed);
+        flow.setEventFanOut(false).setEventFanOut(true);
+        assertTrue(flow.canMoveToState("B"));
+
+        flow.unregister(open);
+        assertFalse(flow.hasRegisteredListeners());
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testSteadyStateAllocations() throws Throwable {
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addState("C")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A")
+                .setHistoryCapacity(16)
+                .setCollapseCycles(true)
+                .setEventClasses(FiniteFlowTest.class, CountingListener.class);
+
+        CountingListener listener = new CountingListener();
+        flow.register(this);
+        flow.register(listener);
+
+        for(int mode = 0; mode < 4; mode++) {
+
+            flow.setConcurrent(mode >= 2).setEventFanOut(mode % 2 == 1);
+
+            // Warm up (event plans, history buffer)
+            runTransitions(flow, 100);
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            runTransitions(flow, 100);
+            int allocations = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+
+            assertEquals(0, allocations);
+        }
+        assertEquals(1600, listener.mEnterBCount);
+
+        // Locked transitions allocate nothing on the general path as well (no collapsing, history over its capacity), lock-free
+        // ones allocate a node per move forward (see setConcurrent)
+        flow.setConcurrent(false).setCollapseCycles(false).addTransition("B", "C").addTransition("C", "A");
+        for(int mode = 0; mode < 2; mode++) {
+
+            flow.setEventFanOut(mode == 1);
+
+            // Warm up (event plans of the new transitions, history buffer over its capacity)
+            runCycles(flow, 1000);
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            runCycles(flow, 100);
+            int allocations = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+
+            assertEquals(0, allocations);
+        }
+        assertEquals(3800, listener.mEnterBCount);
+        assertEquals(16, flow.getTransitionHistory().size());
+    }
+
+    private static void runCycles(FiniteFlow flow, int count) throws Exception {
+
+        for(int i = 0; i < count; i++) {
+
+            flow.moveToState("B").moveToState("C").moveToState("A");
+            flow.tryMoveToPreviousState();
+            flow.moveToState("A");
+        }
+    }
+
+    private static void runTransitions(FiniteFlow flow, int count) throws Exception {
+
+        for(int i = 0; i < count; i++) {
+
+            flow.moveToState("B");
+            flow.applyTransition("B_A");
+
+            // Rejected / checked without throwing
+            flow.tryMoveToState("C");
+            flow.canMoveToState("B");
+
+            flow.moveToState("B");
+            flow.tryMoveToPreviousState();
+        }
+    }
+
+    public static class BlockingListener {
+
+        final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @OnExit(state = "A")
+        public void onExitA() {
+
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mEvents.add("exit A");
+        }
+
+        @OnEnter(state = "B")
+        public void onEnterB() {
+            mEvents.add("enter B");
+        }
+
+        @OnExit(state = "B")
+        public void onExitB() {
+            mEvents.add("exit B");
+        }
+    }
+
+    public void testEventExecutor() throws Throwable {
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                    .addState("A")
+                    .addState("B")
+                    .addTransition("A", "B")
+                    .addTransition("B", "A")
+                    .setInitialState("A")
+                    .setEventClasses(BlockingListener.class)
+                    .setEventExecutor(executor);
+
+            BlockingListener listener = new BlockingListener();
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(listener);
+
+            // Transitions return while the first event is still blocked
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B").moveToState("A").moveToState("B");
+            assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+            assertTrue(listener.mEvents.isEmpty());
+
+            // Switching back to inline events while events are queued does not overtake them
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).setEventExecutor(null).moveToState("A");
+            assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getEventExecutor());
+            assertTrue(listener.mEvents.isEmpty());
+
+            // Then the events are called in the order of the transitions
+            listener.mRelease.countDown();
+            for(int i = 0; i < 100 && listener.mEvents.size() < 6; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.asList("exit A", "enter B", "exit B", "exit A", "enter B", "exit B"), listener.mEvents);
+
+            // Inline once the queue is empty
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+            assertEquals(8, listener.mEvents.size());
+
+            // Tasks still run after one threw an Error
+            final List<String> ran = new ArrayList<>();
+            SerialExecutor serialExecutor = new SerialExecutor(SerialExecutor.INLINE);
+            Error error = null;
+            try {
+                serialExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        throw new StackOverflowError();
+                    }
+                });
+            }
+            catch (StackOverflowError e) {
+                error = e;
+            }
+
+            assertNotNull(error);
+            serialExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.add("task");
+                }
+            });
+            assertEquals(Collections.singletonList("task"), ran);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    public static class RecordingListener {
+
+        final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+        volatile Thread mThread;
+
+        @OnExit(state = "A")
+        public void onExitA() {
+            mEvents.add("exit A");
+            mThread = Thread.currentThread();
+        }
+
+        @OnEnter(state = "A")
+        public void onEnterA() {
+            mEvents.add("enter A");
+        }
+
+        @OnEnter(state = "B")
+        public void onEnterB() {
+            mEvents.add("enter B");
+        }
+
+        @OnEnter(state = "D")
+        public void onEnterD() {
+            mEvents.add("enter D");
+        }
+    }
+
+    public void testEventCoalescing() throws Throwable {
+
+        final List<List<String>> skipped = Collections.synchronizedList(new ArrayList<List<String>>());
+        OnStatesSkippedListener skippedListener = new OnStatesSkippedListener() {
+            @Override
+            public void onStatesSkipped(FiniteFlow flow, List<String> skippedStates) {
+                skipped.add(skippedStates);
+            }
+        };
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addState("C")
+                .addState("D")
+                .addTransition("A", "B")
+                .addTransition("B", "C")
+                .addTransition("C", "D")
+                .addTransition("D", "A")
+                .addTransition("B", "A")
+                .addTransition("D", "D")
+                .setInitialState("A")
+                .setEventClasses(RecordingListener.class)
+                .setEventCoalescing(100, skippedListener);
+
+        RecordingListener listener = new RecordingListener();
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(listener);
+
+        // Only the exit of the first state and the enter of the last one are called
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B").moveToState("C").moveToState("D");
+        assertEquals("D", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+        assertTrue(listener.mEvents.isEmpty());
+        for(int i = 0; i < 100 && skipped.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("exit A", "enter D"), listener.mEvents);
+        assertEquals(Collections.singletonList(Arrays.asList("B", "C")), skipped);
+
+        // Without an executor, the events are called on the Looper of the thread that enabled coalescing (main if it has none)
+        Looper looper = Looper.myLooper();
+        assertSame((looper != null ? looper : Looper.getMainLooper()).getThread(), listener.mThread);
+
+        // A burst of a single self-loop still calls its events
+        listener.mEvents.clear();
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("D");
+        for(int i = 0; i < 100 && listener.mEvents.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList("enter D"), listener.mEvents);
+        assertEquals(1, skipped.size());
+
+        // Ending where it started calls no event (the exit of A / enter of A would be called by a single transition)
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).setEventCoalescing(0, null).moveToState("A").setEventCoalescing(100, skippedListener);
+        listener.mEvents.clear();
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B").moveToPreviousState();
+        for(int i = 0; i < 100 && skipped.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(listener.mEvents.isEmpty());
+        assertEquals(Collections.singletonList("B"), skipped.get(1));
+
+        // Disabled, the events of every transition are called again
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).setEventCoalescing(0, null).moveToState("B");
+        assertEquals(Arrays.asList("exit A", "enter B"), listener.mEvents);
+    }
+
+    public void testWeakListeners() throws Throwable {
+
+        // Setup
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A")
+                .setWeakListeners(true)
+                .setEventClasses(CountingListener.class);
+
+        // Registering an instance of a class that was not provided is ignored
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(this);
+        assertFalse(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getEventClassInstances().containsKey(FiniteFlowTest.class));
+
+        CountingListener listener = new CountingListener();
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).register(listener);
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+        assertEquals(1, listener.mEnterBCount);
+        assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getEventClassInstances().get(CountingListener.class));
+
+        // The flow must not keep the listener alive once it is no longer referenced
+        WeakReference<CountingListener> reference = new WeakReference<>(listener);
+        listener = null;
+        for(int i = 0; i < 10 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("A");
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+        assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStateEventMap().get("B").get(0).getInstance());
+    }
+
+    public void testConcurrentTransitions() throws Throwable {
+
+        final int threadCount = 4, moves = 2000;
+
+        // Setup (every move is valid from any state, so no thread should fail)
+        final FiniteFlow finiteFlow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "A")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .addTransition("B", "B")
+                .setInitialState("A")
+                .setConcurrent(true);
+
+        assertTrue(finiteFlow.isConcurrent());
+
+        final Throwable[] failures = new Throwable[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for(int i = 0; i < threadCount; i++) {
+
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int move = 0; move < moves; move++) {
+                            finiteFlow.moveToState(move % 2 == 0 ? "B" : "A");
+                        }
+                        for(int move = 0; move < moves / 2; move++) {
+                            finiteFlow.moveToPreviousState();
+                        }
+                    }
+                    catch (Throwable t) {
+                        failures[index] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        for(Throwable failure : failures) {
+            if(failure != null) { throw failure; }
+        }
+
+        // No transition is lost and the history is still a connected path ending at the current state
+        List<Transition> history = finiteFlow.getTransitionHistory();
+        assertEquals(threadCount * moves / 2, history.size());
+        assertEquals("A", history.get(0).getFromState());
+        for(int i = 1; i < history.size(); i++) {
+            assertEquals(history.get(i - 1).getToState(), history.get(i).getFromState());
+        }
+        assertEquals(history.get(history.size() - 1).getToState(), finiteFlow.getCurrentState());
+    }
+
+    public void testConcurrentSelfLoop() throws Throwable {
+
+        final FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addState("C")
+                .addTransition("A", "B")
+                .addTransition("B", "B")
+                .addTransition("B", "C")
+                .setInitialState("A")
+                .setCollapseSelfLoops(true)
+                .setConcurrent(true);
+
+        // Another thread moves the flow while the self-loop is being taken (its guard runs between the validation and the commit)
+        final boolean[] moved = { false };
+        flow.addGuard("B", "B", new TransitionGuard() {
+            @Override
+            public boolean isAllowed(FiniteFlow guarded) {
+
+                if(!moved[0]) {
+                    moved[0] = true;
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            flow.tryMoveToState("C");
+                        }
+                    });
+                    thread.start();
+                    try {
+                        thread.join();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return true;
+            }
+        });
+
+        flow.moveToState("B");
+
+        // The self-loop is re-validated against the new state instead of being reported from C
+        assertEquals(FiniteFlow.RESULT_NOT_ALLOWED, flow.tryMoveToState("B"));
+        assertEquals("C", flow.getCurrentState());
+    }
+
+    public void testConcurrentEventOrder() throws Throwable {
+
+        final int threadCount = 4, moves = 5000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                    .addState("A")
+                    .addState("B")
+                    .addTransition("A", "B")
+                    .addTransition("B", "A")
+                    .setInitialState("A")
+                    .setEventClasses(RecordingListener.class)
+                    .setEventExecutor(executor)
+                    .setConcurrent(true);
+
+            RecordingListener listener = new RecordingListener();
+            flow.register(listener);
+
+            // Lock-free transitions made at the same time on different threads
+            final AtomicInteger committed = new AtomicInteger();
+            Thread[] threads = new Thread[threadCount];
+            for(int i = 0; i < threadCount; i++) {
+
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for(int move = 0; move < moves; move++) {
+                            if(flow.tryMoveToState(move % 2 == 0 ? "B" : "A") == FiniteFlow.RESULT_OK) {
+                                committed.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for(Thread thread : threads) {
+                thread.join();
+            }
+
+            // Still have their events called in the order of the commits
+            int expected = committed.get() / 2 * 3 + (committed.get() % 2) * 2;
+            for(int i = 0; i < 500 && listener.mEvents.size() < expected; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(expected, listener.mEvents.size());
+
+            List<String> order = Arrays.asList("exit A", "enter B", "enter A");
+            for(int i = 0; i < expected; i++) {
+                assertEquals(order.get(i % 3), listener.mEvents.get(i));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
     public void testMultiClassEvents() throws Throwable {
 
         // Setup
@@ -1,10 +1,32 @@
 package com.metova.finiteflow;
 
+import android.content.Context;
 import android.test.AndroidTestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class PersistenceTest extends AndroidTestCase {
 
     public static final String TEST_INSTANCE_NAME = "test_instance";
+    public static final String TEST_INSTANCE_NAME_TWO = "test_instance2";
+    public static final String TEST_INSTANCE_NAME_THREE = "test_instance3";
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        FiniteFlow.setInstanceLimits(null, 0, 0);
+        FiniteFlow.clearAllInstances();
+
+        super.tearDown();
+    }
 
     public void testDiskPersistence() throws Throwable {
 
@@ -25,4 +47,484 @@ public class PersistenceTest extends AndroidTestCase {
         FiniteFlow finiteFlow = PersistenceUtil.readFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_DISK, TEST_INSTANCE_NAME);
         assertNotNull(finiteFlow);
     }
+
+    public void testBinaryFormat() throws Throwable {
+
+        // Setup with some history
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A");
+        for(int i = 0; i < 100; i++) {
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B").moveToState("A");
+        }
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+
+        assertTrue(PersistenceUtil.persistFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_DISK, FiniteFlow.getInstance(TEST_INSTANCE_NAME)));
+
+        FiniteFlow finiteFlow = PersistenceUtil.readFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_DISK, TEST_INSTANCE_NAME);
+        assertNotNull(finiteFlow);
+        assertEquals(TEST_INSTANCE_NAME, finiteFlow.getIdentifier());
+        assertEquals(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getStates(), finiteFlow.getStates());
+        assertEquals(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitions(), finiteFlow.getTransitions());
+        assertEquals("B", finiteFlow.getCurrentState());
+        assertEquals(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory(), finiteFlow.getTransitionHistory());
+
+        // Much smaller than the Java-serialized flow
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(FiniteFlow.getInstance(TEST_INSTANCE_NAME));
+        out.close();
+        assertTrue(getContext().getFileStreamPath(TEST_INSTANCE_NAME + "_flow").length() * 4 < serialized.size());
+
+        // Files written with Java serialization can still be read
+        FileOutputStream fos = getContext().openFileOutput(TEST_INSTANCE_NAME + "_flow", Context.MODE_PRIVATE);
+        fos.write(serialized.toByteArray());
+        fos.close();
+
+        finiteFlow = PersistenceUtil.readFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_DISK, TEST_INSTANCE_NAME);
+        assertNotNull(finiteFlow);
+        assertEquals("B", finiteFlow.getCurrentState());
+        assertEquals(201, finiteFlow.getTransitionHistory().size());
+
+        // Corrupted files are rejected
+        ByteBuffer buffer = FlowFormat.encode(FiniteFlow.getInstance(TEST_INSTANCE_NAME));
+        buffer.put(buffer.limit() - 1, (byte) (buffer.get(buffer.limit() - 1) + 1));
+        fos = getContext().openFileOutput(TEST_INSTANCE_NAME + "_flow", Context.MODE_PRIVATE);
+        fos.getChannel().write(buffer);
+        fos.close();
+
+        assertNull(PersistenceUtil.readFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_DISK, TEST_INSTANCE_NAME));
+    }
+
+    public void testLazyHistory() throws Throwable {
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A");
+        for(int i = 0; i < 10; i++) {
+            flow.moveToState("B").moveToState("A");
+        }
+
+        MemoryStorageBackend backend = new MemoryStorageBackend();
+        assertTrue(PersistenceUtil.persistFlow(backend, flow));
+
+        // A history that was not decoded yet is persisted again as is
+        FiniteFlow finiteFlow = PersistenceUtil.readFlow(backend, TEST_INSTANCE_NAME);
+        assertEquals("A", finiteFlow.getCurrentState());
+        assertTrue(PersistenceUtil.persistFlow(backend, finiteFlow));
+        finiteFlow = PersistenceUtil.readFlow(backend, TEST_INSTANCE_NAME);
+        assertEquals(flow.getTransitionHistory(), finiteFlow.getTransitionHistory());
+
+        // Decoded when first needed, with the capacity set meanwhile
+        finiteFlow = PersistenceUtil.readFlow(backend, TEST_INSTANCE_NAME);
+        finiteFlow.setHistoryCapacity(5);
+        finiteFlow.moveToPreviousState();
+        assertEquals("B", finiteFlow.getCurrentState());
+        assertEquals(4, finiteFlow.getTransitionHistory().size());
+
+        finiteFlow = PersistenceUtil.readFlow(backend, TEST_INSTANCE_NAME);
+        finiteFlow.moveToState("B");
+        assertEquals(21, finiteFlow.getTransitionHistory().size());
+
+        // A large file is memory-mapped, writing the flow again does not change the history read from it
+        for(int i = 0; i < 40000; i++) {
+            flow.moveToState("B").moveToState("A");
+        }
+        StorageBackend fileBackend = new FileStorageBackend(getContext());
+        try {
+            assertTrue(PersistenceUtil.persistFlow(fileBackend, flow));
+            assertTrue(getContext().getFileStreamPath(TEST_INSTANCE_NAME + "_flow").length() >= 64 * 1024);
+            finiteFlow = PersistenceUtil.readFlow(fileBackend, TEST_INSTANCE_NAME);
+            List<Transition> history = new ArrayList<>(flow.getTransitionHistory());
+
+            flow.moveToState("B");
+            assertTrue(PersistenceUtil.persistFlow(fileBackend, flow));
+            assertEquals(history, finiteFlow.getTransitionHistory());
+        }
+        finally {
+            PersistenceUtil.deleteFlow(fileBackend, TEST_INSTANCE_NAME);
+        }
+    }
+
+    public void testStorageBackends() throws Throwable {
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A")
+                .moveToState("B");
+
+        StorageBackend[] backends = new StorageBackend[] {
+                new FileStorageBackend(getContext()),
+                new SharedPreferencesStorageBackend(getContext()),
+                new MemoryStorageBackend()
+        };
+        for(StorageBackend backend : backends) {
+
+            assertTrue(PersistenceUtil.persistFlow(backend, flow));
+
+            FiniteFlow finiteFlow = PersistenceUtil.readFlow(backend, TEST_INSTANCE_NAME);
+            assertNotNull(finiteFlow);
+            assertEquals("B", finiteFlow.getCurrentState());
+            assertEquals(flow.getTransitionHistory(), finiteFlow.getTransitionHistory());
+
+            assertTrue(PersistenceUtil.deleteFlow(backend, TEST_INSTANCE_NAME));
+            assertFalse(PersistenceUtil.deleteFlow(backend, TEST_INSTANCE_NAME));
+            assertNull(PersistenceUtil.readFlow(backend, TEST_INSTANCE_NAME));
+        }
+
+        // Shared prefs are implemented through their backend
+        assertTrue(PersistenceUtil.persistFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_SHARED_PREFS, flow));
+        assertEquals("B", PersistenceUtil.readFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_SHARED_PREFS, TEST_INSTANCE_NAME).getCurrentState());
+        assertTrue(PersistenceUtil.deleteFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_SHARED_PREFS, TEST_INSTANCE_NAME));
+    }
+
+    public void testWriteBehind() throws Throwable {
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A");
+
+        final AtomicInteger writes = new AtomicInteger();
+        MemoryStorageBackend backend = new MemoryStorageBackend() {
+            @Override
+            public void write(String key, ByteBuffer data) {
+                writes.incrementAndGet();
+                super.write(key, data);
+            }
+        };
+
+        // Written once initially
+        PersistenceUtil.setWriteBehind(backend, flow, 200);
+        for(int i = 0; i < 100 && writes.get() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, writes.get());
+        assertEquals("A", PersistenceUtil.readFlow(backend, TEST_INSTANCE_NAME).getCurrentState());
+
+        // A burst of changes is written once, off the calling thread
+        for(int i = 0; i < 100; i++) {
+            flow.moveToState("B").moveToState("A");
+        }
+        flow.moveToState("B");
+        assertEquals(1, writes.get());
+        for(int i = 0; i < 100 && writes.get() == 1; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(2, writes.get());
+        assertEquals("B", PersistenceUtil.readFlow(backend, TEST_INSTANCE_NAME).getCurrentState());
+
+        // An unchanged flow is not written again
+        Thread.sleep(400);
+        assertEquals(2, writes.get());
+
+        // Pending changes are written when stopping
+        flow.moveToState("A");
+        assertTrue(PersistenceUtil.stopWriteBehind(flow));
+        assertEquals(3, writes.get());
+        assertEquals("A", PersistenceUtil.readFlow(backend, TEST_INSTANCE_NAME).getCurrentState());
+        assertNull(flow.getStateChangeListener());
+
+        flow.moveToState("B");
+        Thread.sleep(400);
+        assertEquals(3, writes.get());
+    }
+
+    public void testContainer() throws Throwable {
+
+        FlowDefinition definition = new FlowDefinition.Builder()
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A")
+                .build();
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).setDefinition(definition).moveToState("B");
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).setDefinition(definition);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME_THREE).setDefinition(definition).moveToState("B").moveToState("A");
+        assertTrue(FiniteFlow.persistAllInstances(getContext()));
+
+        // Instances are read one by one when requested
+        FiniteFlow.clearAllInstances();
+        assertTrue(FiniteFlow.restoreAllInstances(getContext()));
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+        assertEquals(1, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().size());
+        assertEquals(1, FiniteFlow.getFiniteFlowInstances().size());
+
+        // Persisting again keeps the instances that were not requested yet
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToPreviousState();
+        assertTrue(FiniteFlow.persistAllInstances(getContext()));
+        FiniteFlow.clearAllInstances();
+        assertTrue(FiniteFlow.restoreAllInstances(getContext()));
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).getCurrentState());
+        assertEquals(2, FiniteFlow.getInstance(TEST_INSTANCE_NAME_THREE).getTransitionHistory().size());
+
+        // Cleared instances are not restored
+        FiniteFlow.clearAllInstances();
+        assertTrue(FiniteFlow.restoreAllInstances(getContext()));
+        FiniteFlow.clearInstance(TEST_INSTANCE_NAME);
+        assertNull(FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+
+        getContext().deleteFile(FlowContainer.DEFAULT_NAME);
+        FiniteFlow.clearAllInstances();
+        assertFalse(FiniteFlow.restoreAllInstances(getContext()));
+    }
+
+    public void testPassivation() throws Throwable {
+
+        FlowDefinition definition = new FlowDefinition.Builder()
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A")
+                .build();
+
+        FiniteFlow.setInstanceLimits(getContext(), 2, 0);
+
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).setDefinition(definition).setEventClasses(FiniteFlowTest.class);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).setDefinition(definition).setEventClasses(FiniteFlowTest.class);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO).register(new FiniteFlowTest());
+        assertEquals(2, FiniteFlow.getFiniteFlowInstances().size());
+
+        // Going over the maximum passivates the least recently requested instance without registered listeners (in the background)
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME_THREE);
+        for(int i = 0; i < 100 && FiniteFlow.getFiniteFlowInstances().containsKey(TEST_INSTANCE_NAME); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(FiniteFlow.getFiniteFlowInstances().containsKey(TEST_INSTANCE_NAME));
+        assertTrue(FiniteFlow.getFiniteFlowInstances().containsKey(TEST_INSTANCE_NAME_TWO));
+        assertTrue(FiniteFlow.getFiniteFlowInstances().containsKey(TEST_INSTANCE_NAME_THREE));
+
+        // Reactivated with its state / history and setup
+        FiniteFlow finiteFlow = FiniteFlow.getInstance(TEST_INSTANCE_NAME);
+        assertEquals("B", finiteFlow.getCurrentState());
+        assertEquals(1, finiteFlow.getTransitionHistory().size());
+        assertSame(definition, finiteFlow.getDefinition());
+        assertTrue(finiteFlow.getEventClassInstances().containsKey(FiniteFlowTest.class));
+
+        finiteFlow.moveToPreviousState();
+        assertEquals("A", finiteFlow.getCurrentState());
+
+        // Idle instances are passivated as well
+        FiniteFlow.setInstanceLimits(getContext(), 0, 1);
+        Thread.sleep(10);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO);
+        for(int i = 0; i < 100 && FiniteFlow.getFiniteFlowInstances().size() > 1; i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(FiniteFlow.getFiniteFlowInstances().containsKey(TEST_INSTANCE_NAME));
+        assertFalse(FiniteFlow.getFiniteFlowInstances().containsKey(TEST_INSTANCE_NAME_THREE));
+        assertTrue(FiniteFlow.getFiniteFlowInstances().containsKey(TEST_INSTANCE_NAME_TWO));
+        assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+
+        // Passivated instances are persisted with the others
+        Thread.sleep(10);
+        FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO);
+        for(int i = 0; i < 100 && FiniteFlow.getFiniteFlowInstances().containsKey(TEST_INSTANCE_NAME); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(FiniteFlow.getFiniteFlowInstances().containsKey(TEST_INSTANCE_NAME));
+        assertTrue(FiniteFlow.persistAllInstances(getContext()));
+
+        try {
+            FiniteFlow.setInstanceLimits(null, 0, 0);
+            FiniteFlow.clearAllInstances();
+            assertTrue(FiniteFlow.restoreAllInstances(getContext()));
+            assertEquals("A", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+            assertEquals(0, FiniteFlow.getInstance(TEST_INSTANCE_NAME).getTransitionHistory().size());
+        }
+        finally {
+            getContext().deleteFile(FlowContainer.DEFAULT_NAME);
+        }
+    }
+
+    public void testPassivationRace() throws Throwable {
+
+        FiniteFlow.setInstanceLimits(getContext(), 0, 50);
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .setInitialState("A");
+        Thread.sleep(100);
+
+        // The idle instance is picked by the trim, which waits for its lock, then requested and moved before it gets it
+        synchronized (flow) {
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO);
+            Thread.sleep(50);
+            FiniteFlow.getInstance(TEST_INSTANCE_NAME).moveToState("B");
+        }
+        PersistenceExecutor.EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get();
+
+        // Requested since it was picked, so it is kept (with the move)
+        assertSame(flow, FiniteFlow.getFiniteFlowInstances().get(TEST_INSTANCE_NAME));
+        assertEquals("B", FiniteFlow.getInstance(TEST_INSTANCE_NAME).getCurrentState());
+    }
+
+    public void testPassivationLocking() throws Throwable {
+
+        FiniteFlow.setInstanceLimits(getContext(), 0, 50);
+
+        final FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .setInitialState("A");
+        Thread.sleep(100);
+
+        // Holding the flow's lock (as a guard does) while the trim waits for it: requesting an instance that is not in memory
+        // must not block, and a journal attached meanwhile keeps the flow in memory
+        final AtomicInteger done = new AtomicInteger();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                synchronized (flow) {
+                    FiniteFlow.getInstance(TEST_INSTANCE_NAME_TWO);
+                    try {
+                        Thread.sleep(50);
+                        FiniteFlow.getInstance(TEST_INSTANCE_NAME_THREE);
+                        PersistenceUtil.persistFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, flow);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                done.incrementAndGet();
+            }
+        });
+        thread.start();
+        thread.join(5000);
+        assertEquals(1, done.get());
+
+        try {
+            PersistenceExecutor.EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {}
+            }).get();
+
+            assertNotNull(flow.getStateChangeListener());
+            assertSame(flow, FiniteFlow.getFiniteFlowInstances().get(TEST_INSTANCE_NAME));
+        }
+        finally {
+            assertTrue(PersistenceUtil.deleteFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, TEST_INSTANCE_NAME));
+        }
+    }
+
+    public void testJournal() throws Throwable {
+
+        FiniteFlow flow = FiniteFlow.getInstance(TEST_INSTANCE_NAME)
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .setInitialState("A");
+
+        try {
+            // Only the snapshot is written up front
+            assertTrue(PersistenceUtil.persistFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, flow));
+            File journal = getContext().getFileStreamPath(TEST_INSTANCE_NAME + "_journal");
+            File snapshot = getContext().getFileStreamPath(TEST_INSTANCE_NAME + "_snapshot");
+            long snapshotLength = snapshot.length();
+
+            // Then each state change is a fixed-size record
+            for(int i = 0; i < 100; i++) {
+                flow.moveToState("B").moveToState("A");
+            }
+            flow.moveToState("B").moveToPreviousState().moveToState("B");
+            assertTrue(PersistenceUtil.persistFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, flow));
+            assertEquals(snapshotLength, snapshot.length());
+            long journalLength = journal.length();
+            long recordSize = (journalLength - 12) / 203;
+            assertEquals(12 + 203 * recordSize, journalLength);
+
+            FiniteFlow finiteFlow = PersistenceUtil.readFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, TEST_INSTANCE_NAME);
+            assertNotNull(finiteFlow);
+            assertEquals("B", finiteFlow.getCurrentState());
+            assertEquals(flow.getTransitionHistory(), finiteFlow.getTransitionHistory());
+
+            // A record torn by a crash is ignored
+            FileOutputStream fos = new FileOutputStream(journal, true);
+            fos.write(new byte[] { 1, 2, 3 });
+            fos.close();
+            finiteFlow = PersistenceUtil.readFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, TEST_INSTANCE_NAME);
+            assertEquals(flow.getTransitionHistory(), finiteFlow.getTransitionHistory());
+
+            // Records after a missing one are not replayed (the next move does not start from the current state)
+            byte[] content = readFile(journal);
+            ByteArrayOutputStream gap = new ByteArrayOutputStream();
+            gap.write(content, 0, (int) (12 + 10 * recordSize));
+            gap.write(content, (int) (12 + 11 * recordSize), (int) (journalLength - 12 - 11 * recordSize));
+            writeFile(journal, gap.toByteArray());
+            finiteFlow = PersistenceUtil.readFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, TEST_INSTANCE_NAME);
+            assertEquals("A", finiteFlow.getCurrentState());
+            assertEquals(10, finiteFlow.getTransitionHistory().size());
+            writeFile(journal, content);
+
+            // The journal is compacted into a new snapshot in the background
+            for(int i = 0; i < FlowJournal.COMPACT_RECORDS; i++) {
+                flow.moveToState("A").moveToState("B");
+            }
+            for(int i = 0; i < 100 && journal.length() > 12 + FlowJournal.COMPACT_RECORDS * recordSize; i++) {
+                Thread.sleep(FlowJournal.SYNC_DELAY_MILLIS);
+            }
+            assertTrue(journal.length() < 12 + FlowJournal.COMPACT_RECORDS * recordSize);
+            assertTrue(snapshot.length() > snapshotLength);
+
+            assertTrue(PersistenceUtil.persistFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, flow));
+            finiteFlow = PersistenceUtil.readFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, TEST_INSTANCE_NAME);
+            assertEquals("B", finiteFlow.getCurrentState());
+            assertEquals(flow.getTransitionHistory(), finiteFlow.getTransitionHistory());
+        }
+        finally {
+            assertTrue(PersistenceUtil.deleteFlow(getContext(), PersistenceUtil.PERSIST_TYPE.TYPE_JOURNAL, TEST_INSTANCE_NAME));
+            assertNull(flow.getStateChangeListener());
+        }
+    }
+
+    private static byte[] readFile(File file) throws Throwable {
+
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int read = 0;
+            while(read < content.length) {
+                read += fis.read(content, read, content.length - read);
+            }
+        }
+        finally {
+            fis.close();
+        }
+        return content;
+    }
+
+    private static void writeFile(File file, byte[] content) throws Throwable {
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        }
+        finally {
+            fos.close();
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Rough comparison of locked vs. lock-free (see {@link FiniteFlow#setConcurrent(boolean)}) transitions when several
+ * threads move the same flow (results are logged, not asserted)
+ */
+public class TransitionThroughputBenchmark extends TestCase {
+
+    private static final String TAG = TransitionThroughputBenchmark.class.getSimpleName();
+    private static final String INSTANCE_NAME = "throughput_benchmark";
+
+    private static final int[] THREAD_COUNTS = { 1, 4, 16 };
+    private static final int TOTAL_MOVES = 400000;
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        super.tearDown();
+        FiniteFlow.clearAllInstances();
+    }
+
+    public void testThroughput() throws Throwable {
+
+        // Every move is valid from any state, so threads never fail because another thread moved first
+        FlowDefinition definition = new FlowDefinition.Builder()
+                .addState("A")
+                .addState("B")
+                .addTransition("A", "A")
+                .addTransition("A", "B")
+                .addTransition("B", "A")
+                .addTransition("B", "B")
+                .setInitialState("A")
+                .build();
+
+        // Warmup
+        run(definition, false, 4);
+        run(definition, true, 4);
+
+        for(int threadCount : THREAD_COUNTS) {
+
+            double lockedMs = run(definition, false, threadCount);
+            double concurrentMs = run(definition, true, threadCount);
+
+            Log.i(TAG, threadCount + " thread(s): synchronized " + (long) (TOTAL_MOVES / lockedMs) + " moves/ms, "
+                    + "compare-and-set " + (long) (TOTAL_MOVES / concurrentMs) + " moves/ms");
+        }
+    }
+
+    private double run(FlowDefinition definition, boolean concurrent, int threadCount) throws Throwable {
+
+        FiniteFlow.clearInstance(INSTANCE_NAME);
+        final FiniteFlow finiteFlow = FiniteFlow.getInstance(INSTANCE_NAME).setDefinition(definition).setConcurrent(concurrent);
+        final int moves = TOTAL_MOVES / threadCount;
+
+        final Throwable[] failures = new Throwable[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for(int i = 0; i < threadCount; i++) {
+
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int move = 0; move < moves; move++) {
+                            finiteFlow.moveToState(move % 2 == 0 ? "B" : "A");
+                        }
+                    }
+                    catch (Throwable t) {
+                        failures[index] = t;
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        double elapsedMs = (System.nanoTime() - start) / 1000000.0;
+
+        for(Throwable failure : failures) {
+            if(failure != null) { throw failure; }
+        }
+        assertEquals(moves * threadCount, finiteFlow.getTransitionHistory().size());
+        return elapsedMs;
+    }
+}
@@ -0,0 +1,104 @@
+package com.metova.finiteflow;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the transitions of a flow made within a window, then calls the events of the whole burst at once
+ * (see {@link FiniteFlow#setEventCoalescing(long, OnStatesSkippedListener)})
+ * The window ends on the Looper of the thread that created the coalescer (the main thread if it has none), so the events of a
+ * burst are called there unless an event executor is set
+ */
+final class EventCoalescer {
+
+    private final FiniteFlow mFlow;
+    private final long mWindowMillis;
+    private final OnStatesSkippedListener mListener;
+    private final Handler mHandler;
+
+    // Guarded by this
+    private boolean mPending;
+    private String mFirstState;
+    private String mLastState;
+    private String[] mSkippedStates = new String[4];
+    private int mSkippedCount;
+    private int mTransitionCount;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    EventCoalescer(FiniteFlow flow, long windowMillis, OnStatesSkippedListener listener) {
+        mFlow = flow;
+        mWindowMillis = windowMillis;
+        mListener = listener;
+
+        Looper looper = Looper.myLooper();
+        mHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    OnStatesSkippedListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Record a transition instead of calling its events
+     */
+    synchronized void onTransition(TransitionTable table, int exitStateId, int enterStateId) {
+
+        String exitState = table.getStateName(exitStateId);
+        String enterState = table.getStateName(enterStateId);
+        if(!mPending) {
+
+            mPending = true;
+            mFirstState = exitState;
+            mHandler.postDelayed(mFlushTask, mWindowMillis);
+        }
+        else if(exitStateId != enterStateId) {
+
+            // Left a state entered within the burst
+            if(mSkippedCount == mSkippedStates.length) {
+                mSkippedStates = Arrays.copyOf(mSkippedStates, mSkippedCount * 2);
+            }
+            mSkippedStates[mSkippedCount++] = exitState;
+        }
+        mLastState = enterState;
+        mTransitionCount++;
+    }
+
+    /**
+     * Call the events of the pending burst, if any
+     */
+    void flush() {
+
+        String firstState, lastState;
+        List<String> skippedStates;
+        int transitionCount;
+        synchronized (this) {
+
+            if(!mPending) { return; }
+
+            firstState = mFirstState;
+            lastState = mLastState;
+            skippedStates = new ArrayList<>(Arrays.asList(mSkippedStates).subList(0, mSkippedCount));
+            Arrays.fill(mSkippedStates, 0, mSkippedCount, null);
+            mSkippedCount = 0;
+            transitionCount = mTransitionCount;
+            mTransitionCount = 0;
+            mPending = false;
+        }
+
+        mFlow.dispatchCoalesced(firstState, lastState, transitionCount, skippedStates, mListener);
+    }
+}
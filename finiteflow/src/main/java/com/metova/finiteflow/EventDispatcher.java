@@ -0,0 +1,60 @@
+package com.metova.finiteflow;
+
+/**
+ * Implemented by the classes generated for listener classes with {@link OnEnter} / {@link OnExit} / {@link Guard} methods (named {@code <Type>$$EventDispatcher})
+ * Each event method gets an index into the state / method arrays, and dispatching by index calls the method directly (no reflection)
+ */
+public interface EventDispatcher {
+
+    /**
+     * @return The state of each {@link OnEnter} method, by dispatch index
+     */
+    String[] getOnEnterStates();
+
+    /**
+     * @return The name of each {@link OnEnter} method, by dispatch index
+     */
+    String[] getOnEnterMethods();
+
+    /**
+     * @return The state of each {@link OnExit} method, by dispatch index
+     */
+    String[] getOnExitStates();
+
+    /**
+     * @return The name of each {@link OnExit} method, by dispatch index
+     */
+    String[] getOnExitMethods();
+
+    /**
+     * @return Pairs of from / to states of each {@link Guard} method ({@code [from0, to0, from1, to1, ...]}), by dispatch index
+     */
+    String[] getGuardTransitions();
+
+    /**
+     * @return The name of each {@link Guard} method, by dispatch index
+     */
+    String[] getGuardMethods();
+
+    /**
+     * Call the {@link OnEnter} method with the given dispatch index
+     * @param target Instance of the listener class
+     * @param index Index into {@link #getOnEnterStates()}
+     */
+    void onEnter(Object target, int index);
+
+    /**
+     * Call the {@link OnExit} method with the given dispatch index
+     * @param target Instance of the listener class
+     * @param index Index into {@link #getOnExitStates()}
+     */
+    void onExit(Object target, int index);
+
+    /**
+     * Call the {@link Guard} method with the given dispatch index
+     * @param target Instance of the listener class
+     * @param index Index into {@link #getGuardMethods()}
+     * @return The result of the guard method
+     */
+    boolean guard(Object target, int index);
+}
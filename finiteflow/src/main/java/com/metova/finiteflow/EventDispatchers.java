@@ -0,0 +1,86 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Looks up (and caches) the {@link EventDispatcher} generated for a listener class
+ */
+final class EventDispatchers {
+
+    private static final String TAG = EventDispatchers.class.getSimpleName();
+
+    static final String SUFFIX = "$$EventDispatcher";
+
+    /**
+     * Marker for classes that have no generated dispatcher (so we only try to load once per class)
+     */
+    private static final EventDispatcher NONE = new EventDispatcher() {
+        @Override
+        public String[] getOnEnterStates() { return null; }
+
+        @Override
+        public String[] getOnEnterMethods() { return null; }
+
+        @Override
+        public String[] getOnExitStates() { return null; }
+
+        @Override
+        public String[] getOnExitMethods() { return null; }
+
+        @Override
+        public String[] getGuardTransitions() { return null; }
+
+        @Override
+        public String[] getGuardMethods() { return null; }
+
+        @Override
+        public void onEnter(Object target, int index) {}
+
+        @Override
+        public void onExit(Object target, int index) {}
+
+        @Override
+        public boolean guard(Object target, int index) { return true; }
+    };
+
+    private static final Map<Class<?>, EventDispatcher> sDispatchers = new ConcurrentHashMap<>();
+
+    private EventDispatchers() {}
+
+    /**
+     * @return The generated dispatcher for the class or null if the annotation processor did not run for it
+     */
+    static EventDispatcher find(Class<?> cls) {
+
+        EventDispatcher dispatcher = sDispatchers.get(cls);
+        if(dispatcher == null) {
+
+            dispatcher = load(cls);
+            sDispatchers.put(cls, dispatcher);
+        }
+
+        return dispatcher != NONE ? dispatcher : null;
+    }
+
+    private static EventDispatcher load(Class<?> cls) {
+
+        try {
+            Class<?> generated = Class.forName(cls.getName() + SUFFIX, true, cls.getClassLoader());
+            return (EventDispatcher) generated.newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            return NONE;
+        }
+        catch (InstantiationException e) {
+            Log.e(TAG, "Exception loading generated event dispatcher for " + cls.getName(), e);
+        }
+        catch (IllegalAccessException e) {
+            Log.e(TAG, "Exception loading generated event dispatcher for " + cls.getName(), e);
+        }
+
+        return NONE;
+    }
+}
@@ -0,0 +1,12 @@
+package com.metova.finiteflow;
+
+/**
+ * A single resolved {@link OnEnter} / {@link OnExit} callback
+ */
+interface EventHandler {
+
+    /**
+     * Call the event method on the given listener instance
+     */
+    void call(Object instance);
+}
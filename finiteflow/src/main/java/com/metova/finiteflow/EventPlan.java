@@ -0,0 +1,135 @@
+package com.metova.finiteflow;
+
+import java.util.List;
+
+/**
+ * Pre-computed callbacks of a single transition (in either direction), run in order
+ * Listener instances are read at dispatch time so that register / unregister do not require rebuilding plans
+ * Plans are their own task when events are called on an executor, so handing them over allocates nothing
+ */
+abstract class EventPlan implements Runnable {
+
+    static final EventPlan EMPTY = new EventPlan() {
+        @Override
+        void dispatch() {}
+    };
+
+    /**
+     * Call the events of the plan for every currently registered listener instance
+     */
+    abstract void dispatch();
+
+    @Override
+    public final void run() {
+        dispatch();
+    }
+
+    /**
+     * Build the plan for moving between two states: the OnExit of the state being left, then the OnEnter of the state being entered.
+     * Only the last listener class with an event for a state is called.
+     * @param exitEntries Entries of the state being left (may be null)
+     * @param enterEntries Entries of the state being entered (may be null)
+     */
+    static EventPlan build(List<FiniteFlow.StateEventEntry> exitEntries, List<FiniteFlow.StateEventEntry> enterEntries) {
+
+        FiniteFlow.StateEventEntry onExit = null, onEnter = null;
+        if(exitEntries != null) {
+            for(FiniteFlow.StateEventEntry entry : exitEntries) {
+                if(entry.getOnExitHandler() != null) { onExit = entry; }
+            }
+        }
+        if(enterEntries != null) {
+            for(FiniteFlow.StateEventEntry entry : enterEntries) {
+                if(entry.getOnEnterHandler() != null) { onEnter = entry; }
+            }
+        }
+
+        if(onExit == null && onEnter == null) { return EMPTY; }
+
+        if(onExit == null) {
+            return new EntryPlan(new FiniteFlow.StateEventEntry[] { onEnter }, new EventHandler[] { onEnter.getOnEnterHandler() });
+        }
+        if(onEnter == null) {
+            return new EntryPlan(new FiniteFlow.StateEventEntry[] { onExit }, new EventHandler[] { onExit.getOnExitHandler() });
+        }
+        return new EntryPlan(
+                new FiniteFlow.StateEventEntry[] { onExit, onEnter },
+                new EventHandler[] { onExit.getOnExitHandler(), onEnter.getOnEnterHandler() });
+    }
+
+    /**
+     * Build the plan for moving between two states when every registered listener is called (event fan-out)
+     * @param exitListeners Listeners of the state being left (may be null)
+     * @param enterListeners Listeners of the state being entered (may be null)
+     */
+    static EventPlan fanOut(StateListeners exitListeners, StateListeners enterListeners) {
+
+        if(exitListeners == null && enterListeners == null) { return EMPTY; }
+        return new FanOutPlan(exitListeners, enterListeners);
+    }
+
+
+    /**
+     * Calls the single event entry chosen for each state
+     */
+    private static final class EntryPlan extends EventPlan {
+
+        private final FiniteFlow.StateEventEntry[] mEntries;
+        private final EventHandler[] mHandlers;
+
+        EntryPlan(FiniteFlow.StateEventEntry[] entries, EventHandler[] handlers) {
+            mEntries = entries;
+            mHandlers = handlers;
+        }
+
+        @Override
+        void dispatch() {
+
+            for(int i = 0; i < mEntries.length; i++) {
+
+                Object instance = mEntries[i].getInstance();
+                if(instance != null) {
+                    mHandlers[i].call(instance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls every listener of each state, reading the current (copy-on-write) listener arrays without locking
+     */
+    private static final class FanOutPlan extends EventPlan {
+
+        private final StateListeners mExitListeners;
+        private final StateListeners mEnterListeners;
+
+        FanOutPlan(StateListeners exitListeners, StateListeners enterListeners) {
+            mExitListeners = exitListeners;
+            mEnterListeners = enterListeners;
+        }
+
+        @Override
+        void dispatch() {
+
+            if(mExitListeners != null) {
+
+                StateListeners.Listener[] listeners = mExitListeners.getOnExitListeners();
+                boolean stale = false;
+                for(int i = 0; i < listeners.length; i++) {
+                    if(!listeners[i].call()) { stale = true; }
+                }
+                if(stale) { mExitListeners.removeStale(); }
+            }
+
+            if(mEnterListeners != null) {
+
+                StateListeners.Listener[] listeners = mEnterListeners.getOnEnterListeners();
+                boolean stale = false;
+                for(int i = 0; i < listeners.length; i++) {
+                    if(!listeners[i].call()) { stale = true; }
+                }
+                if(stale) { mEnterListeners.removeStale(); }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.metova.finiteflow;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores each key in its own private file of the app, large files are memory-mapped when read (files are replaced, never
+ * rewritten in place)
+ */
+public class FileStorageBackend implements StorageBackend {
+
+    /**
+     * Files of at least this size are memory-mapped when read, smaller ones are read into a single buffer
+     */
+    private static final int MAP_THRESHOLD = 64 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Context mContext;
+
+    public FileStorageBackend(@NonNull Context context) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    }
+
+    /**
+     * The file is replaced atomically (written to a temporary file then renamed), so buffers mapped from it stay valid
+     */
+    @Override
+    public void write(@NonNull String key, @NonNull ByteBuffer data) throws IOException {
+
+        File file = mContext.getFileStreamPath(key);
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            FileChannel channel = fos.getChannel();
+            while(data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        } finally {
+            fos.close();
+        }
+
+        if(!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    @Override
+    public ByteBuffer read(@NonNull String key) throws IOException {
+
+        FileInputStream fis;
+        try {
+            fis = mContext.openFileInput(key);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            return read(fis.getChannel());
+        } finally {
+            fis.close();
+        }
+    }
+
+    @Override
+    public boolean delete(@NonNull String key) {
+        return mContext.deleteFile(key);
+    }
+
+    /**
+     * Read the whole file, memory-mapped if it is large
+     */
+    static ByteBuffer read(FileChannel channel) throws IOException {
+
+        long size = channel.size();
+        if(size >= MAP_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while(buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Read until full / end of file
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
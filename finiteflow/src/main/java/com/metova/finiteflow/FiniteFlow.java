@@ -1,36 +1,74 @@
 package com.metova.finiteflow;
 
+import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.EmptyStackException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Class that is responsible for keeping state information / moving between states
- * TODO: Either disable ability to modify states / transitions after creation
- * TODO: or provide a method to re-initialize the FSM
+ * States / transitions can either be added directly (builder-style) or shared between instances via an immutable {@link FlowDefinition},
+ * in which case they can no longer be modified and {@link #setDefinition(FlowDefinition)} re-initializes the FSM
+ * Transitions are serialized with the instance lock by default, see {@link #setConcurrent(boolean)} for lock-free transitions
+ * Events are called inline by default, see {@link #setEventExecutor(java.util.concurrent.Executor)} to call them on an executor
  */
 public class FiniteFlow implements Serializable {
 
     private static final String TAG = FiniteFlow.class.getSimpleName();
 
+    /**
+     * Results of the non-throwing transitions (see {@link #tryMoveToState(String)})
+     */
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_NOT_ALLOWED = 1;
+    public static final int RESULT_NO_HISTORY = 2;
+    public static final int RESULT_NOT_INITIALIZED = 3;
+    public static final int RESULT_GUARDED = 4;
+
+    /**
+     * Compiled guards of a flow without any guard
+     */
+    private static final TransitionGuard[][] NO_GUARDS = new TransitionGuard[0][];
+
 
     /**
      * Defines a mapping of context to FiniteFlow instances, allowing mutliple instances based on context
+     * Created on first use and discarded by {@link #clearAllInstances()}
+     */
+    private static volatile FlowRegistry mRegistry;
+
+    /**
+     * Limits applied to the registry (see {@link #setInstanceLimits(Context, int, long)}), guarded by the class lock
+     */
+    private static Context mRegistryContext;
+    private static int mMaxInstances;
+    private static long mIdleTimeoutMillis;
+
+    /**
+     * See {@link #setStacklessExceptions(boolean)}
      */
-    private static Map<String, FiniteFlow> mFiniteFlowInstances;
+    private static volatile boolean mStacklessExceptions;
+
+    private static final AtomicReferenceFieldUpdater<FiniteFlow, HistoryNode> HEAD_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(FiniteFlow.class, HistoryNode.class, "mHead");
 
 
     /**
@@ -45,6 +83,44 @@ public class FiniteFlow implements Serializable {
      */
     private Map<String, List<StateEventEntry>> mStateEventMap;
 
+    /**
+     * Defines a mapping of event class to all of its state event entries, so register / unregister only touch that class's entries
+     */
+    private Map<Class, List<StateEventEntry>> mClassEventEntries;
+
+    /**
+     * If listener instances are held through {@link WeakReference}s (cleared listeners are dropped during dispatch)
+     */
+    private boolean mWeakListeners;
+
+    /**
+     * If every registered listener of a state is called (instead of only the last instance of the last class with an event for it)
+     */
+    private boolean mEventFanOut;
+
+    /**
+     * Calls the events in order on the executor set with {@link #setEventExecutor(Executor)}, null to call them inline
+     */
+    private transient volatile SerialExecutor mEventExecutor;
+
+    /**
+     * Coalesces the events of bursts of transitions (see {@link #setEventCoalescing(long, OnStatesSkippedListener)}), null if disabled
+     */
+    private transient volatile EventCoalescer mEventCoalescer;
+
+    /**
+     * Defines a mapping of state to all registered listeners when event fan-out is enabled
+     * The listener arrays are replaced on register / unregister (copy-on-write) so dispatch reads them without locking
+     */
+    private Map<String, StateListeners> mStateListeners;
+
+    /**
+     * Every registered listener instance, in registration order (several instances of a class can be registered, see
+     * {@link #setEventFanOut(boolean)}), so that unregistering one keeps the others and the mappings can be rebuilt from them
+     * Copy-on-write, so it is read without locking (e.g. by {@link #hasRegisteredListeners()})
+     */
+    private final List<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+
     /**
      * Defines a list of states defined by string
      */
@@ -56,20 +132,87 @@ public class FiniteFlow implements Serializable {
     private List<Transition> mTransitions;
 
     /**
-     * Defines our current state by string name
+     * Defines our current state by id (index into mStates, see {@link TransitionTable})
+     */
+    private volatile int mCurrentStateId = TransitionTable.NO_ID;
+
+    /**
+     * Defines a list of all transitions taken in the past (as transition ids, see {@link TransitionHistory})
+     */
+    private transient TransitionHistory mTransitionHistory;
+
+    /**
+     * History of a flow read in the binary format that was not decoded yet (see {@link #decodeHistory()}), null if there is none
      */
-    private String mCurrentState;
+    private transient FlowFormat.Reader mEncodedHistory;
 
     /**
-     * Defines a list of all transitions taken in the past (via Stack)
+     * History policy: maximum number of transitions kept (0 for no maximum), and if self-loops / A -> B -> A cycles are collapsed
      */
-    private Stack<Transition> mTransitionHistory;
+    private int mHistoryCapacity;
+    private boolean mCollapseSelfLoops;
+    private boolean mCollapseCycles;
+
+    /**
+     * Current state / history when transitions are lock-free (see {@link #setConcurrent(boolean)}), null otherwise
+     * Each transition replaces the node with compare-and-set, so the state and its history always change together
+     */
+    private transient volatile HistoryNode mHead;
+
+    /**
+     * Latest node popped from mHead (moving back / collapsed cycle), reused if its transition is taken again from the same node
+     */
+    private transient volatile HistoryNode mPoppedNode;
 
     /**
      * Identifier for the instance
      */
     private String mIdentifier;
 
+    /**
+     * When the instance was last requested through {@link #getInstance(String)} (only tracked when the registry is bounded)
+     */
+    private transient volatile long mLastAccessTime;
+
+    /**
+     * Notified of every state / history change (journaled persistence), null for none
+     */
+    private transient volatile StateChangeListener mStateChangeListener;
+
+    /**
+     * Compiled form of mStates / mTransitions used for lookups while transitioning
+     * This is (re)built lazily and discarded whenever a state / transition is added
+     */
+    private transient volatile TransitionTable mTransitionTable;
+
+    /**
+     * Shared definition this flow was setup with, if any (mStates / mTransitions / mTransitionTable then belong to it and cannot be modified)
+     */
+    private transient FlowDefinition mDefinition;
+
+    /**
+     * Callbacks to run for each transition id (moving forward / back through history), built lazily from mStateEventMap
+     * These are discarded whenever the transition table or the event mapping change
+     */
+    private transient EventPlan[] mEventPlans;
+    private transient EventPlan[] mReverseEventPlans;
+
+    /**
+     * Guards added with {@link #addGuard(String, String, TransitionGuard)}, by transition (not persisted, as event classes)
+     */
+    private transient Map<Transition, List<TransitionGuard>> mTransitionGuards;
+
+    /**
+     * {@link Guard} methods of the event classes, bound to their registered instances
+     */
+    private transient List<ListenerGuard> mListenerGuards;
+
+    /**
+     * Guards of each transition id in evaluation order (null for unguarded transitions), built lazily from mTransitionGuards /
+     * mListenerGuards so that the transition lookup is directly followed by its guards. Discarded whenever either or the table change.
+     */
+    private transient volatile TransitionGuard[][] mGuards;
+
 
     /**
      * Return an instance of FiniteFlow based on the provided context
@@ -77,30 +220,159 @@ public class FiniteFlow implements Serializable {
      * @return Builder instance
      */
     public static FiniteFlow getInstance(@NonNull String identifier) {
+        return getRegistry().getOrCreate(identifier);
+    }
 
-        if(mFiniteFlowInstances == null) { mFiniteFlowInstances = new HashMap<>(); }
+    private static FlowRegistry getRegistry() {
 
-        if(!mFiniteFlowInstances.containsKey(identifier)) {
-            mFiniteFlowInstances.put(identifier, new FiniteFlow(identifier));
-        }
+        FlowRegistry registry = mRegistry;
+        if(registry == null) {
 
-        return mFiniteFlowInstances.get(identifier);
+            synchronized (FiniteFlow.class) {
+                registry = mRegistry;
+                if(registry == null) {
+                    registry = new FlowRegistry();
+                    registry.setLimits(mRegistryContext, mMaxInstances, mIdleTimeoutMillis);
+                    mRegistry = registry;
+                }
+            }
+        }
+        return registry;
     }
 
-    private FiniteFlow(String identifier) {
+    FiniteFlow(String identifier) {
         mIdentifier = identifier;
     }
 
 
+    /**
+     * Set the maximum number of transitions kept in the history (the oldest transitions are dropped first).
+     * {@link #moveToPreviousState()} can then only move back through the transitions that are kept.
+     * @param capacity The maximum number of transitions, 0 for no maximum (the default)
+     * @return Builder instance
+     */
+    public synchronized FiniteFlow setHistoryCapacity(int capacity) {
+
+        if(capacity < 0) { throw new IllegalArgumentException("History capacity must not be negative"); }
+
+        mHistoryCapacity = capacity;
+        if(mTransitionHistory != null) {
+            mTransitionHistory.setCapacity(capacity);
+        }
+
+        // Lock-free history: drop the transitions over the new capacity (racing transitions keep it from their own head)
+        HistoryNode head;
+        while(capacity > 0 && (head = mHead) != null && head.mDepth - head.mOldestDepth > capacity) {
+            if(HEAD_UPDATER.compareAndSet(this, head, head.trimmed(getTransitionTable(), capacity))) { break; }
+        }
+        return this;
+    }
+
+    /**
+     * Do not record transitions from a state to itself in the history (moving back then skips them, as they did not change the state)
+     * @param collapse If self-loops should not be recorded
+     * @return Builder instance
+     */
+    public synchronized FiniteFlow setCollapseSelfLoops(boolean collapse) {
+
+        mCollapseSelfLoops = collapse;
+        return this;
+    }
+
+    /**
+     * Record a transition that reverses the latest one in the history (A -> B then B -> A) by removing the latest one instead,
+     * so moving back and forth between two states does not grow the history
+     * @param collapse If A -> B -> A cycles should be collapsed
+     * @return Builder instance
+     */
+    public synchronized FiniteFlow setCollapseCycles(boolean collapse) {
+
+        mCollapseCycles = collapse;
+        return this;
+    }
+
+    /**
+     * Bound the instances kept in memory. Instances over the maximum (least recently requested first) or that have not been requested
+     * for the idle timeout are passivated to disk in the background (see {@link PersistenceUtil}) and reactivated by the next {@link #getInstance(String)}
+     * for their identifier, with their state / history, definition, event classes, guards and options. Registered listeners are not persisted,
+     * so instances with registered listeners are never passivated. References to a passivated instance are detached from the registry,
+     * so instances should be requested through {@link #getInstance(String)} rather than held while idle.
+     * @param context Context used for persistence, null to no longer bound the instances
+     * @param maxInstances Maximum instances kept in memory, 0 for no maximum
+     * @param idleTimeoutMillis Time after which an instance that has not been requested is passivated, 0 for no timeout
+     */
+    public static void setInstanceLimits(@Nullable Context context, int maxInstances, long idleTimeoutMillis) {
+
+        FlowRegistry registry;
+        synchronized (FiniteFlow.class) {
+            mRegistryContext = context != null ? context.getApplicationContext() : null;
+            mMaxInstances = maxInstances;
+            mIdleTimeoutMillis = idleTimeoutMillis;
+            registry = mRegistry;
+        }
+
+        if(registry != null) {
+            registry.setLimits(context, maxInstances, idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * Persist every instance (in memory, passivated, or restored but not requested yet) into a single file, with one sequential write.
+     * As with {@link PersistenceUtil}, the states / transitions and state / history are persisted but not the event classes / listeners.
+     * @param context Context used for persistence
+     * @return If the instances were persisted
+     */
+    public static boolean persistAllInstances(@NonNull Context context) {
+
+        try {
+            getRegistry().persistAll(context);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception persisting the instances", e);
+        }
+        return false;
+    }
+
+    /**
+     * Make the instances persisted with {@link #persistAllInstances(Context)} available again. Only the index of the file is read,
+     * each instance is read on its own the first time its identifier is requested through {@link #getInstance(String)}
+     * (instances already in memory are kept).
+     * @param context Context used for persistence
+     * @return If persisted instances were found
+     */
+    public static boolean restoreAllInstances(@NonNull Context context) {
+
+        try {
+            return getRegistry().restoreAll(context);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception restoring the instances", e);
+        }
+        return false;
+    }
+
+    /**
+     * Skip capturing the stack trace of the exceptions thrown for rejected / invalid transitions (which is most of their cost),
+     * for apps that reject transitions often. Prefer {@link #tryMoveToState(String)} and the other non-throwing variants where possible.
+     * @param stackless If the exceptions should be created without a stack trace
+     */
+    public static void setStacklessExceptions(boolean stackless) {
+        mStacklessExceptions = stackless;
+    }
+
+    static boolean isStacklessExceptions() {
+        return mStacklessExceptions;
+    }
+
     /**
      * Clear / remove an instance mapped to the input context
      * @param identifier identifier of the instance to remove
      */
     public static void clearInstance(@NonNull String identifier) {
 
-        if(mFiniteFlowInstances == null) { return; }
+        FlowRegistry registry = mRegistry;
+        if(registry == null) { return; }
 
-        mFiniteFlowInstances.remove(identifier);
+        registry.remove(identifier);
     }
 
     /**
@@ -108,9 +380,14 @@ public class FiniteFlow implements Serializable {
      */
     public static void clearAllInstances() {
 
-        if(mFiniteFlowInstances == null) { return; }
-        mFiniteFlowInstances.clear();
-        mFiniteFlowInstances = null;
+        FlowRegistry registry;
+        synchronized (FiniteFlow.class) {
+            registry = mRegistry;
+            mRegistry = null;
+        }
+
+        if(registry == null) { return; }
+        registry.clear();
     }
 
 
@@ -122,7 +399,9 @@ public class FiniteFlow implements Serializable {
      */
     public FiniteFlow setEventClasses(@NonNull Class...classes) throws FlowInitializationException {
 
-        mEventClassInstances = new HashMap<>();
+        // Kept in the given order, which decides the "last class" whose event is called for a state (without event fan-out)
+        mRegistrations.clear();
+        mEventClassInstances = new LinkedHashMap<>();
         for(Class cls : classes) {
 
             mEventClassInstances.put(cls, null);
@@ -132,64 +411,234 @@ public class FiniteFlow implements Serializable {
     }
 
 
-    // TODO: Unit test this
     /**
-     * Set an instance of an event class for state event method calls
-     * @param object The instance to use when making event calls
+     * Call the events of every registered listener instance (in registration order), rather than only the last one
+     * registered for the last class that has an event for the state. Multiple instances of the same class may be registered.
+     * @param fanOut If all registered listeners should be called
+     * @return Builder instance
      */
-    public void register(Object object) {
+    public synchronized FiniteFlow setEventFanOut(boolean fanOut) {
 
-        for(Map.Entry<Class, Object> entry : mEventClassInstances.entrySet()) {
+        if(mEventFanOut != fanOut) {
+
+            mEventFanOut = fanOut;
+            initStateListeners();
+            invalidateEventPlans();
+        }
+        return this;
+    }
+
+    /**
+     * Call the events on an executor instead of on the thread moving the flow: a transition returns as soon as the state
+     * changed, and its events are called afterwards, outside of the instance lock. Events are still called one at a time in
+     * the order of the transitions, whatever the executor (e.g. a single thread, a pool shared by many flows, or a virtual
+     * thread per task on JVMs that have them), including lock-free transitions committed at the same time on different threads
+     * (see {@link #setConcurrent(boolean)}); listeners may then see the flow in a later state than the one they are called for.
+     * Changing the executor keeps that order: events already queued are called first, where they were going to be.
+     * @param executor Executor to call the events on, null to call them inline (the default)
+     * @return Builder instance
+     */
+    public synchronized FiniteFlow setEventExecutor(@Nullable Executor executor) {
+
+        SerialExecutor eventExecutor = mEventExecutor;
+        if(eventExecutor != null) {
+            // Same queue, so events queued before the change are not overtaken (inline events wait for them)
+            eventExecutor.setExecutor(executor != null ? executor : SerialExecutor.INLINE);
+        }
+        else if(executor != null) {
+            mEventExecutor = new SerialExecutor(executor);
+        }
+        return this;
+    }
+
+    /**
+     * Coalesce the events of transitions made in quick succession (e.g. repeated taps, or walking A -> B -> C -> D): the first
+     * transition starts a window, and once it elapses only the OnExit of the state the burst started from and the OnEnter of the
+     * state it ended in are called (none if it ended where it started, unless the burst is a single self-loop). The states entered and left within the window are
+     * reported at once to the listener. Events of coalesced transitions are called on the Looper of the thread calling this method
+     * (the main thread if it has none), or on the executor set with {@link #setEventExecutor(Executor)}.
+     * @param windowMillis Time during which transitions following the first one of a burst are coalesced, 0 to call the events of
+     *                     every transition (the default). One frame (16ms) only coalesces transitions the user could not see.
+     * @param listener Notified of the states skipped by each burst (may be null)
+     * @return Builder instance
+     */
+    public synchronized FiniteFlow setEventCoalescing(long windowMillis, @Nullable OnStatesSkippedListener listener) {
+
+        if(windowMillis < 0) { throw new IllegalArgumentException("The window cannot be negative"); }
+
+        // Events of a pending burst are called before the next transition's
+        EventCoalescer coalescer = mEventCoalescer;
+        mEventCoalescer = windowMillis > 0 ? new EventCoalescer(this, windowMillis, listener) : null;
+        if(coalescer != null) {
+            coalescer.flush();
+        }
+        return this;
+    }
+
+    /**
+     * Hold registered listener instances through {@link WeakReference}s, so that a listener that is never unregistered
+     * (e.g. an Activity / Fragment) is not leaked by the flow. Listeners that have been collected are dropped during dispatch.
+     * When enabled, {@link #getEventClassInstances()} does not report (hold) the registered instances.
+     * This applies to instances registered after the call.
+     * @param weakListeners If listener instances should be weakly held
+     * @return Builder instance
+     */
+    public synchronized FiniteFlow setWeakListeners(boolean weakListeners) {
 
-            if(entry.getKey().equals(object.getClass())) {
+        mWeakListeners = weakListeners;
+        return this;
+    }
 
-                entry.setValue(object);
+    /**
+     * Commit transitions with a compare-and-set on the current state instead of holding the instance lock, so threads
+     * moving the same flow do not block each other. A move is validated against the state it is committed from (and retried
+     * if another thread moved first), and events are called after the commit, outside of any lock, so the events of
+     * transitions made at the same time on different threads may interleave (unless they are called on an event executor,
+     * which queues them in the order of the commits, see {@link #setEventExecutor(Executor)}).
+     * Unlike locked transitions, which allocate nothing once warmed up, lock-free ones allocate a history node for each move
+     * forward (moving back then forward again with the same transition reuses it), and a bounded history is copied every
+     * capacity moves.
+     * States / transitions / listener classes should be setup before transitions are made from multiple threads (ideally with a
+     * {@link FlowDefinition}), they are not guarded against transitions that are in progress.
+     * @param concurrent If transitions should be lock-free
+     * @return Builder instance
+     */
+    public synchronized FiniteFlow setConcurrent(boolean concurrent) {
 
-                // Modify all state event mappings with this instance
-                for(Map.Entry<String, List<StateEventEntry>> eventEntry : mStateEventMap.entrySet()) {
+        if(concurrent && mHead == null) {
 
-                    List<StateEventEntry> entries = eventEntry.getValue();
-                    for(StateEventEntry stateEventEntry : entries) {
+            // Move the current state / history over to nodes
+            decodeHistory();
+            HistoryNode head = null;
+            if(mTransitionHistory != null && !mTransitionHistory.isEmpty()) {
 
-                        // If the class is the same, set our instance
-                        if(stateEventEntry.mStateClass.equals(entry.getKey())) {
+                TransitionTable table = getTransitionTable();
+                head = new HistoryNode(table.getFromStateId(mTransitionHistory.get(0)), TransitionTable.NO_ID, null);
+                for(int i = 0; i < mTransitionHistory.size(); i++) {
 
-                            stateEventEntry.mInstance = object;
-                        }
-                    }
+                    int transitionId = mTransitionHistory.get(i);
+                    head = new HistoryNode(table.getToStateId(transitionId), transitionId, head);
                 }
             }
+            mHead = head != null ? head.withState(mCurrentStateId) : new HistoryNode(mCurrentStateId, TransitionTable.NO_ID, null);
+        }
+        else if(!concurrent && mHead != null) {
+
+            HistoryNode head = mHead;
+            mTransitionHistory = head.toHistory(mHistoryCapacity);
+            mCurrentStateId = head.mStateId;
+            mHead = null;
+            mPoppedNode = null;
+        }
+        else {
+            return this;
+        }
+
+        // Changes are no longer reported the same way
+        notifyStateChanged(StateChangeListener.CHANGE_SETUP, TransitionTable.NO_ID);
+        return this;
+    }
+
+    /**
+     * Set an instance of an event class for state event method calls
+     * @param object The instance to use when making event calls
+     */
+    public synchronized void register(Object object) {
+
+        Class cls = object.getClass();
+        if(mEventClassInstances == null || !mEventClassInstances.containsKey(cls)) { return; }
+
+        // Registering an instance again makes it the last registered one
+        removeRegistration(object);
+        mRegistrations.add(new Registration(cls, object, mWeakListeners));
+        setClassInstance(cls, object);
+
+        List<StateEventEntry> entries = mClassEventEntries.get(cls);
+        if(entries != null && mEventFanOut) {
+            addStateListeners(entries, object);
         }
     }
 
-    // TODO: Unit test this
     /**
      * Remove an instance of an event class for state event method calls
+     * The last instance of its class registered before it (if any is still registered) is used again
      * @param object The instance to use when making event calls
      */
-    public void unregister(Object object) {
+    public synchronized void unregister(Object object) {
 
-        for(Map.Entry<Class, Object> entry : mEventClassInstances.entrySet()) {
+        Class cls = object.getClass();
+        if(mEventClassInstances == null || !mEventClassInstances.containsKey(cls)) { return; }
+
+        removeRegistration(object);
+        setClassInstance(cls, getLastRegistered(cls));
+
+        List<StateEventEntry> entries = mClassEventEntries.get(cls);
+        if(entries != null && mEventFanOut) {
+            removeStateListeners(entries, object);
+        }
+    }
 
-            if(entry.getKey().equals(object.getClass())) {
+    /**
+     * Point the class's instance, guards and state event mappings at the instance (null for none)
+     */
+    private void setClassInstance(Class cls, Object object) {
 
-                entry.setValue(null);
+        mEventClassInstances.put(cls, mWeakListeners ? null : object);
+        setGuardInstances(cls, object, object != null && mWeakListeners);
 
-                // Modify all state event mappings with this instance
-                for(Map.Entry<String, List<StateEventEntry>> eventEntry : mStateEventMap.entrySet()) {
+        // Modify the state event mappings of this class with this instance
+        List<StateEventEntry> entries = mClassEventEntries.get(cls);
+        if(entries == null) { return; }
 
-                    List<StateEventEntry> entries = eventEntry.getValue();
-                    for(StateEventEntry stateEventEntry : entries) {
+        for(StateEventEntry stateEventEntry : entries) {
+            stateEventEntry.setInstance(object, object != null && mWeakListeners);
+        }
+    }
 
-                        // If the class is the same, set our instance
-                        if(stateEventEntry.mStateClass.equals(entry.getKey())) {
+    /**
+     * Remove the registration of the instance, and those of collected (weakly held) instances
+     */
+    private void removeRegistration(Object object) {
 
-                            stateEventEntry.mInstance = null;
-                        }
-                    }
-                }
+        for(Registration registration : mRegistrations) {
+
+            Object instance = registration.getInstance();
+            if(instance == null || instance == object) {
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * @return The last registered instance of the class that is still registered, null if there is none
+     */
+    private Object getLastRegistered(Class cls) {
+
+        Object last = null;
+        for(Registration registration : mRegistrations) {
+
+            Object instance = registration.getInstance();
+            if(registration.mListenerClass == cls && instance != null) {
+                last = instance;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return The registered instances, in registration order
+     */
+    private List<Object> getRegisteredInstances() {
+
+        List<Object> instances = new ArrayList<>(mRegistrations.size());
+        for(Registration registration : mRegistrations) {
+
+            Object instance = registration.getInstance();
+            if(instance != null) {
+                instances.add(instance);
             }
         }
+        return instances;
     }
 
     /**
@@ -203,11 +652,11 @@ public class FiniteFlow implements Serializable {
 
         if(mStates == null) { throw new FlowInitializationException(); }
 
-        for(String s : mStates) {
-            if(s.equals(state)) {
-                mCurrentState = state;
-                return this;
-            }
+        int stateId = mStates.indexOf(state);
+        if(stateId >= 0) {
+            setCurrentStateId(stateId);
+            notifyStateChanged(StateChangeListener.CHANGE_SET_STATE, stateId);
+            return this;
         }
 
         throw new FlowInvalidException("The state does not exist for moving to the initial state");
@@ -220,10 +669,13 @@ public class FiniteFlow implements Serializable {
      */
     public synchronized FiniteFlow addState(@NonNull String name) {
 
+        checkNotDefined();
+
         if(mStates == null) { mStates = new ArrayList<String>(); }
 
         if(!mStates.contains(name)) {
             mStates.add(name);
+            invalidateTransitionTable();
         }
         else {
             Log.d(TAG, "Duplicate state not added: " + name);
@@ -231,34 +683,116 @@ public class FiniteFlow implements Serializable {
         return this;
     }
 
+    /**
+     * Setup this flow with a shared, immutable definition. The FSM is (re)initialized: it moves to the definition's
+     * starting state, the history is cleared and states / transitions can no longer be added.
+     * @param definition The definition to use
+     * @return Builder instance
+     */
+    public synchronized FiniteFlow setDefinition(@NonNull FlowDefinition definition) {
+
+        mDefinition = definition;
+        mStates = definition.getStates();
+        mTransitions = definition.getTransitions();
+        mTransitionTable = definition.getTransitionTable();
+        mTransitionHistory = null;
+        mEncodedHistory = null;
+        mCurrentStateId = mTransitionTable.getStateId(definition.getInitialState());
+        if(mHead != null) { mHead = new HistoryNode(mCurrentStateId, TransitionTable.NO_ID, null); }
+        mGuards = null;
+        invalidateEventPlans();
+
+        // Re-map the event classes to the new states, registering every listener again (in registration order)
+        if(mEventClassInstances != null) {
+
+            List<Object> registered = getRegisteredInstances();
+            mRegistrations.clear();
+
+            try {
+                initEventMapping();
+            }
+            catch (FlowInitializationException e) {
+                Log.e(TAG, "Exception re-initializing events for the new definition", e);
+            }
+
+            for(Object instance : registered) {
+                register(instance);
+            }
+        }
+        notifyStateChanged(StateChangeListener.CHANGE_SETUP, TransitionTable.NO_ID);
+        return this;
+    }
+
     // region Helper methods for @Flow annotation
+    /**
+     * Setup states / transitions / starting state from the {@link Flow} annotation of the provided object's class.
+     * A flow without states copies them from the class's {@link FlowDefinition} (validated once, see {@link FlowDefinition#forFlow(Class)}),
+     * otherwise the annotation's states / transitions are added to the existing ones. Either way states / transitions can still be added,
+     * use {@link #setDefinition(FlowDefinition)} to share the definition instead.
+     * @param object Instance of a class annotated with {@link Flow}
+     * @return Builder instance
+     * @throws FlowInitializationException If the class is not annotated or a transition references an unknown state
+     * @throws FlowInvalidException If the initial state does not exist
+     */
     public FiniteFlow flowFor(Object object) throws FlowInitializationException, FlowInvalidException {
-        addStates(object);
-        addTransitions(object);
-        addInitialState(object);
+
+        synchronized (this) {
+            if(mDefinition == null && (mStates == null || mStates.isEmpty())) {
+
+                FlowDefinition definition = FlowDefinition.forFlow(object.getClass());
+                mStates = new ArrayList<>(definition.getStates());
+                mTransitions = new ArrayList<>(definition.getTransitions());
+                invalidateTransitionTable();
+                return setInitialState(definition.getInitialState());
+            }
+        }
+
+        Flow flow = getFlowAnnotation(object);
+        addStates(flow);
+        addTransitions(flow);
+        addInitialState(flow);
         return this;
     }
 
     public FiniteFlow addInitialState(Object object) throws FlowInvalidException, FlowInitializationException {
-        setInitialState(object.getClass().getAnnotation(Flow.class).initialState());
+        return addInitialState(getFlowAnnotation(object));
+    }
+
+    public FiniteFlow addStates(Object object) {
+        return addStates(object.getClass().getAnnotation(Flow.class));
+    }
+
+    public FiniteFlow addTransitions(Object object) throws FlowInitializationException {
+        return addTransitions(getFlowAnnotation(object));
+    }
+
+    private FiniteFlow addInitialState(Flow flow) throws FlowInvalidException, FlowInitializationException {
+        setInitialState(flow.initialState());
         return this;
     }
 
-    public FiniteFlow addStates(Object object){
-        String[] states = object.getClass().getAnnotation(Flow.class).states();
+    private FiniteFlow addStates(Flow flow) {
+        String[] states = flow.states();
         for (int i = 0; i < states.length; i++) {
             addState(states[i]);
         }
         return this;
     }
 
-    public FiniteFlow addTransitions(Object object) throws FlowInitializationException{
-        FlowTransition[] transitions = object.getClass().getAnnotation(Flow.class).transitions();
+    private FiniteFlow addTransitions(Flow flow) throws FlowInitializationException {
+        FlowTransition[] transitions = flow.transitions();
         for (int i = 0; i < transitions.length; i++) {
             addTransition(transitions[i].from(), transitions[i].to());
         }
         return this;
     }
+
+    private static Flow getFlowAnnotation(Object object) throws FlowInitializationException {
+
+        Flow flow = object.getClass().getAnnotation(Flow.class);
+        if(flow == null) { throw new FlowInitializationException(); }
+        return flow;
+    }
     // endregion Helper methods
 
     /**
@@ -270,6 +804,8 @@ public class FiniteFlow implements Serializable {
      */
     public synchronized FiniteFlow addTransition(@NonNull String fromState, @NonNull String toState) throws FlowInitializationException {
 
+        checkNotDefined();
+
         if(mStates == null || mStates.isEmpty()) { throw new FlowInitializationException(); }
 
         if(mTransitions == null) { mTransitions = new ArrayList<Transition>(); }
@@ -286,6 +822,7 @@ public class FiniteFlow implements Serializable {
 
         if(!mTransitions.contains(transition)) {
             mTransitions.add(transition);
+            invalidateTransitionTable();
         }
         else {
             Log.d(TAG, "Duplicate transition not added: " + transition.toString());
@@ -294,62 +831,152 @@ public class FiniteFlow implements Serializable {
     }
 
     /**
-     * Move from state to state by applying a specific transitions state changes
-     * @param name The state-generated name of the transition to use
+     * Add a guard to a transition: the transition is only taken if every one of its guards allows it. Guards are checked in the
+     * order they were added, then the {@link Guard} methods of the event classes (in the order of the classes, then of the method
+     * names), stopping at the first that does not allow it. Moving back through the history is not guarded.
+     * @param fromState The state the transition moves from
+     * @param toState The state the transition moves to
+     * @param guard The guard to add
      * @return Builder instance
-     * @throws InvalidStateChangeException In case moving with the transition is not valid for the current state of the FSM
-     * @throws FlowInitializationException If the FSM has not been setup correctly with states / transitions / starting state
+     * @throws FlowInitializationException If the transition does not exist
      */
-    public synchronized FiniteFlow applyTransition(@NonNull String name) throws InvalidStateChangeException, FlowInitializationException {
-
-        if(!isValidForTransitions()) { throw new FlowInitializationException(); }
+    public synchronized FiniteFlow addGuard(@NonNull String fromState, @NonNull String toState, @NonNull TransitionGuard guard) throws FlowInitializationException {
 
-        for(Transition transition : mTransitions) {
+        Transition transition = new Transition(fromState, toState);
+        if(mTransitions == null || !mTransitions.contains(transition)) { throw new FlowInitializationException(); }
 
-            if(transition.getTransitionName().equals(name)) {
+        if(mTransitionGuards == null) { mTransitionGuards = new LinkedHashMap<>(); }
 
-                // If the transition is valid, attempt to apply it
-                if(transition.getFromState().equals(mCurrentState)) {
+        List<TransitionGuard> guards = mTransitionGuards.get(transition);
+        if(guards == null) {
+            guards = new ArrayList<>();
+            mTransitionGuards.put(transition, guards);
+        }
+        guards.add(guard);
+        mGuards = null;
+        return this;
+    }
 
-                    mCurrentState = transition.getToState();
-                    callEvents(transition, false);
-                    addTransitionToHistory(transition);
-                    return this;
-                }
-                else {
+    /**
+     * @return The guards added with {@link #addGuard(String, String, TransitionGuard)} (for passivation)
+     */
+    synchronized Map<Transition, List<TransitionGuard>> getTransitionGuards() {
+        return mTransitionGuards != null ? new LinkedHashMap<>(mTransitionGuards) : null;
+    }
 
-                    throw new InvalidStateChangeException(mCurrentState, transition);
-                }
-            }
+    /**
+     * Move from state to state by applying a specific transitions state changes
+     * @param name The state-generated name of the transition to use
+     * @return Builder instance
+     * @throws InvalidStateChangeException In case moving with the transition is not valid for the current state of the FSM (or not allowed by its guards)
+     * @throws FlowInitializationException If the FSM has not been setup correctly with states / transitions / starting state
+     */
+    public FiniteFlow applyTransition(@NonNull String name) throws InvalidStateChangeException, FlowInitializationException {
+
+        int result = tryApplyTransition(name);
+        if(result == RESULT_NOT_INITIALIZED) { throw new FlowInitializationException(); }
+        if(result == RESULT_NOT_ALLOWED || result == RESULT_GUARDED) {
+            TransitionTable table = getConcurrentTransitionTable();
+            int transitionId = table.getTransitionId(name);
+            throw new InvalidStateChangeException(getCurrentState(), transitionId != TransitionTable.NO_ID ? table.getTransition(transitionId) : null);
         }
+        return this;
+    }
 
-        throw new InvalidStateChangeException(mCurrentState, null);
+    /**
+     * Same as {@link #applyTransition(String)}, without throwing (or allocating) when the transition is rejected
+     * @param name The state-generated name of the transition to use
+     * @return {@link #RESULT_OK}, {@link #RESULT_NOT_ALLOWED} if moving with the transition is not valid for the current state,
+     * {@link #RESULT_GUARDED} if one of its guards does not allow it, or {@link #RESULT_NOT_INITIALIZED} if the FSM has not been setup correctly with states / transitions / starting state
+     */
+    public int tryApplyTransition(@NonNull String name) {
+
+        if(mHead != null) { return tryApplyTransitionConcurrent(name); }
+
+        synchronized (this) {
+
+            // Lock-free transitions may have been enabled while waiting for the lock
+            if(mHead != null) { return tryApplyTransitionConcurrent(name); }
+
+            if(!isValidForTransitions()) { return RESULT_NOT_INITIALIZED; }
+
+            TransitionTable table = getTransitionTable();
+            int transitionId = table.getTransitionId(name);
+            if(transitionId == TransitionTable.NO_ID || table.getFromStateId(transitionId) != mCurrentStateId) {
+                return RESULT_NOT_ALLOWED;
+            }
+            if(!checkGuards(table, transitionId)) { return RESULT_GUARDED; }
+
+            // The state / history are committed before the events, so an event that throws cannot leave them half updated
+            setCurrentStateId(table.getToStateId(transitionId));
+            notifyStateChanged(addTransitionToHistory(table, transitionId), transitionId);
+            callEvents(table, transitionId, false);
+            return RESULT_OK;
+        }
     }
 
     /**
      * Attempt to move to the provided state from the current state
      * @param name The state to attempt to move to
      * @return Builder instance
-     * @throws InvalidStateChangeException In case moving to the supplied state is not valid for the current state of the FSM
+     * @throws InvalidStateChangeException In case moving to the supplied state is not valid for the current state of the FSM (or not allowed by its guards)
      * @throws FlowInitializationException If the FSM has not been setup correctly with states / transitions / starting state
      */
-    public synchronized FiniteFlow moveToState(@NonNull String name) throws InvalidStateChangeException, FlowInitializationException {
+    public FiniteFlow moveToState(@NonNull String name) throws InvalidStateChangeException, FlowInitializationException {
 
-        if(!isValidForTransitions()) { throw new FlowInitializationException(); }
+        int result = tryMoveToState(name);
+        if(result == RESULT_NOT_INITIALIZED) { throw new FlowInitializationException(); }
+        if(result == RESULT_NOT_ALLOWED || result == RESULT_GUARDED) {
+            String currentState = getCurrentState();
+            throw new InvalidStateChangeException(currentState, new Transition(currentState, name));
+        }
+        return this;
+    }
 
-        for(Transition transition : mTransitions) {
+    /**
+     * Same as {@link #moveToState(String)}, without throwing (or allocating) when the move is rejected
+     * @param name The state to attempt to move to
+     * @return {@link #RESULT_OK}, {@link #RESULT_NOT_ALLOWED} if moving to the state is not valid for the current state,
+     * {@link #RESULT_GUARDED} if one of its guards does not allow it, or {@link #RESULT_NOT_INITIALIZED} if the FSM has not been setup correctly with states / transitions / starting state
+     */
+    public int tryMoveToState(@NonNull String name) {
 
-            // If a transition exists from current state to new state, this is valid (use the transition)
-            if(transition.getFromState().equals(mCurrentState) && transition.getToState().equals(name)) {
+        if(mHead != null) { return tryMoveToStateConcurrent(name); }
 
-                mCurrentState = name;
-                callEvents(transition, false);
-                addTransitionToHistory(transition);
-                return this;
-            }
+        synchronized (this) {
+
+            // Lock-free transitions may have been enabled while waiting for the lock
+            if(mHead != null) { return tryMoveToStateConcurrent(name); }
+
+            if(!isValidForTransitions()) { return RESULT_NOT_INITIALIZED; }
+
+            // If a transition exists from current state to new state, this is valid (use the transition)
+            TransitionTable table = getTransitionTable();
+            int transitionId = table.getTransitionId(mCurrentStateId, table.getStateId(name));
+            if(transitionId == TransitionTable.NO_ID) { return RESULT_NOT_ALLOWED; }
+            if(!checkGuards(table, transitionId)) { return RESULT_GUARDED; }
+
+            // The state / history are committed before the events, so an event that throws cannot leave them half updated
+            setCurrentStateId(table.getToStateId(transitionId));
+            notifyStateChanged(addTransitionToHistory(table, transitionId), transitionId);
+            callEvents(table, transitionId, false);
+            return RESULT_OK;
         }
+    }
+
+    /**
+     * Check, without moving, if the state can be moved to from the current state (e.g. to enable / disable controls)
+     * @param name The state to check
+     * @return If {@link #moveToState(String)} would currently be valid for the state (and allowed by its guards)
+     */
+    public boolean canMoveToState(@NonNull String name) {
 
-        throw new InvalidStateChangeException(mCurrentState, new Transition(mCurrentState, name));
+        TransitionTable table = getConcurrentTransitionTable();
+        int stateId = getCurrentStateId();
+        if(!isValidForTransitions(table, stateId)) { return false; }
+
+        int transitionId = table.getTransitionId(stateId, table.getStateId(name));
+        return transitionId != TransitionTable.NO_ID && checkGuards(table, transitionId);
     }
 
     /**
@@ -358,46 +985,520 @@ public class FiniteFlow implements Serializable {
      * @throws FlowInitializationException If the FSM has not been setup correctly with states / transitions / starting state / no transition history (for now)
      * @throws FlowInvalidException If the flow does not have any history to move to.
      */
-    public synchronized FiniteFlow moveToPreviousState() throws FlowInvalidException, FlowInitializationException {
+    public FiniteFlow moveToPreviousState() throws FlowInvalidException, FlowInitializationException {
 
-        if(!isValidForTransitions()) { throw new FlowInitializationException(); }
-        if(mTransitionHistory == null || mTransitionHistory.isEmpty()) { throw new FlowInvalidException("The flow has no history to move to."); }
+        int result = tryMoveToPreviousState();
+        if(result == RESULT_NOT_INITIALIZED) { throw new FlowInitializationException(); }
+        if(result == RESULT_NO_HISTORY) { throw new FlowInvalidException("The flow has no history to move to."); }
+        return this;
+    }
+
+    /**
+     * Same as {@link #moveToPreviousState()}, without throwing (or allocating) when there is no history
+     * @return {@link #RESULT_OK}, {@link #RESULT_NO_HISTORY} if the flow does not have any history to move to,
+     * or {@link #RESULT_NOT_INITIALIZED} if the FSM has not been setup correctly with states / transitions / starting state
+     */
+    public int tryMoveToPreviousState() {
+
+        if(mHead != null) { return tryMoveToPreviousStateConcurrent(); }
+
+        synchronized (this) {
+
+            // Lock-free transitions may have been enabled while waiting for the lock
+            if(mHead != null) { return tryMoveToPreviousStateConcurrent(); }
+
+            if(!isValidForTransitions()) { return RESULT_NOT_INITIALIZED; }
 
-        Transition transition = removeTransitionFromHistory();
-        if(transition != null) {
+            decodeHistory();
+            if(mTransitionHistory == null || mTransitionHistory.isEmpty()) { return RESULT_NO_HISTORY; }
 
-            mCurrentState = transition.getFromState();
-            callEvents(transition, true);
+            TransitionTable table = getTransitionTable();
+            int transitionId = mTransitionHistory.pop();
+            setCurrentStateId(table.getFromStateId(transitionId));
+            notifyStateChanged(StateChangeListener.CHANGE_BACK, transitionId);
+            callEvents(table, transitionId, true);
+            return RESULT_OK;
         }
+    }
 
-        return this;
+    /**
+     * Move through several states in one go (e.g. replaying a path or skipping through a wizard). The whole path is validated
+     * before anything is applied (including the guards of every step, checked before the first step is taken), then applied at once:
+     * either every step is taken (with its history), or none is. The events of the steps are called in order once the whole path
+     * has been applied.
+     * @param path The states to move to, in order, starting from the current state
+     * @return Builder instance
+     * @throws InvalidStateChangeException If a step of the path is not valid (nothing was applied)
+     * @throws FlowInitializationException If the FSM has not been setup correctly with states / transitions / starting state
+     */
+    public FiniteFlow moveThrough(@NonNull String... path) throws InvalidStateChangeException, FlowInitializationException {
+
+        if(mHead != null) { return moveThroughConcurrent(path); }
+
+        synchronized (this) {
+
+            // Lock-free transitions may have been enabled while waiting for the lock
+            if(mHead != null) { return moveThroughConcurrent(path); }
+
+            if(!isValidForTransitions()) { throw new FlowInitializationException(); }
+
+            TransitionTable table = getTransitionTable();
+            int[] transitionIds = resolvePath(table, mCurrentStateId, path);
+
+            // The history grows once for the whole path
+            decodeHistory();
+            if(mTransitionHistory == null) { mTransitionHistory = new TransitionHistory(mHistoryCapacity); }
+            mTransitionHistory.reserve(transitionIds.length);
+
+            for(int transitionId : transitionIds) {
+
+                setCurrentStateId(table.getToStateId(transitionId));
+                notifyStateChanged(addTransitionToHistory(table, transitionId), transitionId);
+            }
+
+            // Events are called once the whole path is applied, so an event that throws cannot leave it partly applied
+            for(int transitionId : transitionIds) {
+                callEvents(table, transitionId, false);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * @return Ids of the transitions moving through the path from the state
+     * @throws InvalidStateChangeException For the first step of the path that is not a valid transition (or not allowed by its guards)
+     */
+    private int[] resolvePath(TransitionTable table, int stateId, String[] path) throws InvalidStateChangeException {
+
+        int[] transitionIds = new int[path.length];
+        for(int i = 0; i < path.length; i++) {
+
+            int transitionId = table.getTransitionId(stateId, table.getStateId(path[i]));
+            if(transitionId == TransitionTable.NO_ID || !checkGuards(table, transitionId)) {
+                String currentState = table.getStateName(stateId);
+                throw new InvalidStateChangeException(currentState, new Transition(currentState, path[i]));
+            }
+
+            transitionIds[i] = transitionId;
+            stateId = table.getToStateId(transitionId);
+        }
+        return transitionIds;
+    }
+
+    /**
+     * Get the states that can be moved to from the current state (in the order their transitions were added)
+     * @return Unmodifiable list of states, empty if the FSM has not been setup with states / transitions / starting state
+     */
+    public List<String> getAllowedNextStates() {
+
+        HistoryNode head = mHead;
+        if(head != null) {
+
+            TransitionTable table = getConcurrentTransitionTable();
+            int stateId = head.mStateId;
+            return isValidForTransitions(table, stateId) ? table.getNextStates(stateId) : Collections.<String>emptyList();
+        }
+
+        synchronized (this) {
+
+            if(!isValidForTransitions()) { return Collections.emptyList(); }
+
+            TransitionTable table = getTransitionTable();
+            return table.getNextStates(mCurrentStateId);
+        }
+    }
+
+
+    // region Concurrent transitions
+    private int tryApplyTransitionConcurrent(String name) {
+
+        TransitionTable table = getConcurrentTransitionTable();
+        int transitionId = table != null ? table.getTransitionId(name) : TransitionTable.NO_ID;
+
+        while(true) {
+
+            HistoryNode head = mHead;
+            if(head == null) { return tryApplyTransition(name); }
+            if(!isValidForTransitions(table, head.mStateId)) { return RESULT_NOT_INITIALIZED; }
+
+            if(transitionId == TransitionTable.NO_ID || table.getFromStateId(transitionId) != head.mStateId) {
+                return RESULT_NOT_ALLOWED;
+            }
+            if(!checkGuards(table, transitionId)) { return RESULT_GUARDED; }
+
+            if(commitTransition(table, head, transitionId)) { return RESULT_OK; }
+        }
+    }
+
+    private int tryMoveToStateConcurrent(String name) {
+
+        TransitionTable table = getConcurrentTransitionTable();
+        int toStateId = table != null ? table.getStateId(name) : TransitionTable.NO_ID;
+
+        while(true) {
+
+            HistoryNode head = mHead;
+            if(head == null) { return tryMoveToState(name); }
+            if(!isValidForTransitions(table, head.mStateId)) { return RESULT_NOT_INITIALIZED; }
+
+            int transitionId = table.getTransitionId(head.mStateId, toStateId);
+            if(transitionId == TransitionTable.NO_ID) { return RESULT_NOT_ALLOWED; }
+            if(!checkGuards(table, transitionId)) { return RESULT_GUARDED; }
+
+            if(commitTransition(table, head, transitionId)) { return RESULT_OK; }
+        }
+    }
+
+    /**
+     * Commit the transition if no other thread changed the state / history since head was read, then call its events
+     * @return False if another thread committed first (the caller re-validates against the new state)
+     */
+    private boolean commitTransition(TransitionTable table, HistoryNode head, int transitionId) {
+
+        // A collapsed self-loop changes neither the state nor the history (next is head), the compare-and-set still checks that
+        // no other thread moved the flow, so its events are not called for a state the flow already left
+        HistoryNode next = nextNode(table, head, transitionId);
+        return commitHead(table, head, next, getChange(head, next), transitionId, false);
+    }
+
+    /**
+     * Compare-and-set the head, then report the change and call the events of the transition (taken backwards if reverse)
+     * With an event executor, the events are queued holding the executor's lock from the compare-and-set on, so the events of
+     * transitions committed at the same time on different threads are queued (and called) in the order of the commits
+     * @return False if another thread committed first
+     */
+    private boolean commitHead(TransitionTable table, HistoryNode head, HistoryNode next, int change, int transitionId, boolean reverse) {
+
+        SerialExecutor executor = mEventExecutor;
+        if(executor == null) {
+
+            if(!HEAD_UPDATER.compareAndSet(this, head, next)) { return false; }
+            if(next.mDepth < head.mDepth) { mPoppedNode = head; }
+
+            notifyStateChanged(change, transitionId);
+            callEvents(table, transitionId, reverse);
+            return true;
+        }
+
+        synchronized (executor) {
+
+            if(!HEAD_UPDATER.compareAndSet(this, head, next)) { return false; }
+            if(next.mDepth < head.mDepth) { mPoppedNode = head; }
+
+            notifyStateChanged(change, transitionId);
+            queueEvents(executor, table, transitionId, reverse);
+        }
+
+        // Run without holding the lock (inline executors call the events right away)
+        executor.resume();
+        return true;
+    }
+
+    private void queueEvents(SerialExecutor executor, TransitionTable table, int transitionId, boolean reverse) {
+
+        EventPlan events = getEvents(table, transitionId, reverse);
+        if(events != EventPlan.EMPTY) {
+            executor.enqueue(events);
+        }
+    }
+
+    /**
+     * @return The state / history after moving with the transition from head (head itself for a collapsed self-loop)
+     */
+    private HistoryNode nextNode(TransitionTable table, HistoryNode head, int transitionId) {
+
+        int toStateId = table.getToStateId(transitionId);
+        if(mCollapseSelfLoops && toStateId == head.mStateId) { return head; }
+
+        if(mCollapseCycles && head.hasHistory() && head.mPrevious.mStateId == toStateId
+                && table.getFromStateId(head.mTransitionId) == toStateId) {
+            return head.popped();
+        }
+
+        // The oldest transitions over the capacity can no longer be moved back through, as with the locked history
+        int capacity = mHistoryCapacity;
+        int oldestDepth = capacity > 0 ? Math.max(head.mOldestDepth, head.mDepth + 1 - capacity) : head.mOldestDepth;
+
+        // Nodes are immutable, so moving back and forth (or back then forward again) reuses the popped node instead of allocating
+        HistoryNode next = mPoppedNode;
+        if(next == null || next.mPrevious != head || next.mTransitionId != transitionId || next.mStateId != toStateId
+                || next.mOldestDepth != oldestDepth) {
+            next = new HistoryNode(toStateId, transitionId, head, oldestDepth);
+        }
+
+        if(capacity > 0 && next.mDepth >= capacity * 2) {
+            // Drop the oldest nodes every capacity transitions (instead of copying on every transition)
+            next = next.trimmed(table, capacity);
+        }
+        return next;
+    }
+
+    /**
+     * @return How the history changed from head to next (see {@link #nextNode(TransitionTable, HistoryNode, int)})
+     */
+    private static int getChange(HistoryNode head, HistoryNode next) {
+
+        if(next == head) { return StateChangeListener.CHANGE_MOVE; }
+        return next.mDepth < head.mDepth ? StateChangeListener.CHANGE_MOVE_POP : StateChangeListener.CHANGE_MOVE_PUSH;
+    }
+
+    private FiniteFlow moveThroughConcurrent(String[] path) throws InvalidStateChangeException, FlowInitializationException {
+
+        TransitionTable table = getConcurrentTransitionTable();
+        int[] changes = new int[path.length];
+
+        while(true) {
+
+            HistoryNode head = mHead;
+            if(head == null) { return moveThrough(path); }
+            if(!isValidForTransitions(table, head.mStateId)) { throw new FlowInitializationException(); }
+
+            // The whole path is committed at once, against the state it was validated from
+            int[] transitionIds = resolvePath(table, head.mStateId, path);
+            HistoryNode next = head;
+            for(int i = 0; i < transitionIds.length; i++) {
+
+                HistoryNode node = nextNode(table, next, transitionIds[i]);
+                changes[i] = getChange(next, node);
+                next = node;
+            }
+            SerialExecutor executor = mEventExecutor;
+            if(executor == null) {
+
+                if(!HEAD_UPDATER.compareAndSet(this, head, next)) { continue; }
+
+                for(int i = 0; i < transitionIds.length; i++) {
+                    notifyStateChanged(changes[i], transitionIds[i]);
+                }
+                for(int transitionId : transitionIds) {
+                    callEvents(table, transitionId, false);
+                }
+                return this;
+            }
+
+            // Queued in the order of the commits, see commitHead
+            synchronized (executor) {
+
+                if(!HEAD_UPDATER.compareAndSet(this, head, next)) { continue; }
+
+                for(int i = 0; i < transitionIds.length; i++) {
+                    notifyStateChanged(changes[i], transitionIds[i]);
+                }
+                for(int transitionId : transitionIds) {
+                    queueEvents(executor, table, transitionId, false);
+                }
+            }
+            executor.resume();
+            return this;
+        }
+    }
+
+    private int tryMoveToPreviousStateConcurrent() {
+
+        TransitionTable table = getConcurrentTransitionTable();
+
+        while(true) {
+
+            HistoryNode head = mHead;
+            if(head == null) { return tryMoveToPreviousState(); }
+            if(!isValidForTransitions(table, head.mStateId)) { return RESULT_NOT_INITIALIZED; }
+            if(!head.hasHistory()) { return RESULT_NO_HISTORY; }
+
+            if(commitHead(table, head, head.popped(), StateChangeListener.CHANGE_BACK, head.mTransitionId, true)) {
+                return RESULT_OK;
+            }
+        }
+    }
+
+    private TransitionTable getConcurrentTransitionTable() {
+
+        TransitionTable table = mTransitionTable;
+        if(table == null && mStates != null && mTransitions != null) {
+            synchronized (this) {
+                table = getTransitionTable();
+            }
+        }
+        return table;
     }
+    // endregion
 
 
     // region Utility
+    /**
+     * Use the (equal) shared definition again for a flow read from persistence, keeping its current state / history
+     */
+    synchronized void restoreDefinition(FlowDefinition definition) {
+
+        mDefinition = definition;
+        mStates = definition.getStates();
+        mTransitions = definition.getTransitions();
+        mTransitionTable = definition.getTransitionTable();
+        mGuards = null;
+        invalidateEventPlans();
+    }
+
+    /**
+     * @return If any listener instance is currently registered
+     */
+    boolean hasRegisteredListeners() {
+
+        for(Registration registration : mRegistrations) {
+            if(registration.getInstance() != null) { return true; }
+        }
+        return false;
+    }
+
+    Class[] getEventClasses() {
+        return mEventClassInstances != null ? mEventClassInstances.keySet().toArray(new Class[mEventClassInstances.size()]) : null;
+    }
+
+    StateChangeListener getStateChangeListener() {
+        return mStateChangeListener;
+    }
+
+    void setStateChangeListener(@Nullable StateChangeListener listener) {
+        mStateChangeListener = listener;
+    }
+
+    /**
+     * Apply a change reported to a {@link StateChangeListener} again (replaying a journal), without calling any events
+     * @return False if the change does not apply to this flow in its current state (a record is missing before it)
+     */
+    synchronized boolean replayStateChange(int change, int id) {
+
+        if(mHead != null || mStates == null || mTransitions == null) { return false; }
+
+        TransitionTable table = getTransitionTable();
+        if(change == StateChangeListener.CHANGE_SET_STATE) {
+
+            if(id < 0 || id >= table.getStateCount()) { return false; }
+
+            mCurrentStateId = id;
+            return true;
+        }
+
+        if(id < 0 || id >= table.getTransitionCount()) { return false; }
+
+        // Moves start from the current state, moves back from the transition's destination
+        int stateId = change == StateChangeListener.CHANGE_BACK ? table.getToStateId(id) : table.getFromStateId(id);
+        if(stateId != mCurrentStateId) { return false; }
+
+        decodeHistory();
+        if(mTransitionHistory == null) { mTransitionHistory = new TransitionHistory(mHistoryCapacity); }
+
+        switch(change) {
+            case StateChangeListener.CHANGE_MOVE_PUSH:
+                mTransitionHistory.push(id);
+                mCurrentStateId = table.getToStateId(id);
+                return true;
+            case StateChangeListener.CHANGE_MOVE:
+                mCurrentStateId = table.getToStateId(id);
+                return true;
+            case StateChangeListener.CHANGE_MOVE_POP:
+                mTransitionHistory.pop();
+                mCurrentStateId = table.getToStateId(id);
+                return true;
+            case StateChangeListener.CHANGE_BACK:
+                if(mTransitionHistory.pop() != id) { return false; }
+                mCurrentStateId = table.getFromStateId(id);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    long getLastAccessTime() {
+        return mLastAccessTime;
+    }
+
+    void setLastAccessTime(long lastAccessTime) {
+        mLastAccessTime = lastAccessTime;
+    }
+
+    private void checkNotDefined() {
+
+        if(mDefinition != null) {
+            throw new IllegalStateException("States / transitions cannot be modified once the flow is setup with a FlowDefinition");
+        }
+    }
+
+    private void invalidateTransitionTable() {
+
+        mTransitionTable = null;
+        mGuards = null;
+        invalidateEventPlans();
+        notifyStateChanged(StateChangeListener.CHANGE_SETUP, TransitionTable.NO_ID);
+    }
+
+    private TransitionTable getTransitionTable() {
+
+        if(mTransitionTable == null) {
+            mTransitionTable = TransitionTable.compile(mStates, mTransitions);
+        }
+        return mTransitionTable;
+    }
+
     private boolean isValidForTransitions() {
 
-        return mCurrentState != null
+        return getCurrentStateId() != TransitionTable.NO_ID
                 && mStates != null && !mStates.isEmpty()
                 && mTransitions != null && !mTransitions.isEmpty();
     }
 
-    private void addTransitionToHistory(Transition transition) {
+    private static boolean isValidForTransitions(TransitionTable table, int stateId) {
+        return table != null && stateId != TransitionTable.NO_ID && table.getTransitionCount() > 0;
+    }
 
-        if(mTransitionHistory == null) { mTransitionHistory = new Stack<Transition>(); }
+    /**
+     * Set the current state while holding the instance lock (keeping the history)
+     */
+    private void setCurrentStateId(int stateId) {
 
-        mTransitionHistory.push(transition);
+        HistoryNode head = mHead;
+        if(head != null) {
+            mHead = head.withState(stateId);
+        }
+        else {
+            mCurrentStateId = stateId;
+        }
     }
 
-    private Transition removeTransitionFromHistory() {
+    private int getCurrentStateId() {
 
-        if(mTransitionHistory == null) { mTransitionHistory = new Stack<Transition>(); }
+        HistoryNode head = mHead;
+        return head != null ? head.mStateId : mCurrentStateId;
+    }
 
-        try {
-            return mTransitionHistory.pop();
+    /**
+     * @return How the history changed, as a {@link StateChangeListener} change
+     */
+    private int addTransitionToHistory(TransitionTable table, int transitionId) {
+
+        decodeHistory();
+        if(mTransitionHistory == null) { mTransitionHistory = new TransitionHistory(mHistoryCapacity); }
+
+        int fromStateId = table.getFromStateId(transitionId);
+        int toStateId = table.getToStateId(transitionId);
+        if(mCollapseSelfLoops && fromStateId == toStateId) { return StateChangeListener.CHANGE_MOVE; }
+
+        if(mCollapseCycles && !mTransitionHistory.isEmpty()) {
+
+            int latest = mTransitionHistory.peek();
+            if(table.getFromStateId(latest) == toStateId && table.getToStateId(latest) == fromStateId) {
+                mTransitionHistory.pop();
+                return StateChangeListener.CHANGE_MOVE_POP;
+            }
         }
-        catch (EmptyStackException e) {
-            return null;
+
+        mTransitionHistory.push(transitionId);
+        return StateChangeListener.CHANGE_MOVE_PUSH;
+    }
+
+    private void notifyStateChanged(int change, int id) {
+
+        StateChangeListener listener = mStateChangeListener;
+        if(listener != null) {
+            listener.onStateChanged(this, change, id);
         }
     }
 
@@ -406,133 +1507,282 @@ public class FiniteFlow implements Serializable {
 
         if(!isValidForTransitions()) { throw new FlowInitializationException(); }
 
+        // Listener classes are scanned once per process, so this only walks the states each class has events for
+        TransitionTable table = getTransitionTable();
         mStateEventMap = new HashMap<>();
-        for(String state : mStates) {
+        mClassEventEntries = new HashMap<>();
+        List<ListenerGuard> listenerGuards = new ArrayList<>();
+        for(Map.Entry<Class, Object> entry : mEventClassInstances.entrySet()) {
+
+            List<StateEventEntry> classEntries = new ArrayList<>();
+            mClassEventEntries.put(entry.getKey(), classEntries);
+
+            ListenerInfo listenerInfo = ListenerInfo.get(entry.getKey());
+            for(ListenerInfo.GuardMethod guardMethod : listenerInfo.getGuardMethods()) {
+                listenerGuards.add(new ListenerGuard(entry.getKey(), guardMethod, entry.getValue()));
+            }
+
+            for(Map.Entry<String, ListenerInfo.StateEvents> stateEvents : listenerInfo.getStateEvents().entrySet()) {
+
+                String state = stateEvents.getKey();
+                if(table.getStateId(state) == TransitionTable.NO_ID) { continue; }
 
-            for(Map.Entry<Class, Object> entry : mEventClassInstances.entrySet()) {
-
-                StateEventEntry stateEventEntry = getMethodsForState(entry.getKey(), entry.getValue(), state);
-                if(stateEventEntry != null) {
-
-                    List<StateEventEntry> entries = mStateEventMap.get(state);
-                    if(entries != null) {
-                        if(!entries.contains(stateEventEntry)) {
-                            entries.add(stateEventEntry);
-                        }
-                    }
-                    else {
-                        entries = new ArrayList<>();
-                        entries.add(stateEventEntry);
-                    }
+                List<StateEventEntry> entries = mStateEventMap.get(state);
+                if(entries == null) {
+                    entries = new ArrayList<>();
                     mStateEventMap.put(state, entries);
                 }
+                StateEventEntry stateEventEntry = new StateEventEntry(entry.getKey(), entry.getValue(), state, stateEvents.getValue());
+                entries.add(stateEventEntry);
+                classEntries.add(stateEventEntry);
             }
         }
+
+        mListenerGuards = listenerGuards;
+        mGuards = null;
+
+        initStateListeners();
+        invalidateEventPlans();
     }
 
     /**
-     * Method that calls event of annotated methods for classes related to flows
+     * (Re)build the per-state listener arrays used for event fan-out from the currently registered instances
      */
-    private void callEvents(@NonNull Transition transition, boolean reverse) {
-
-        if(!isValidForTransitions()) { return; }
-        if(mStateEventMap == null || mEventClassInstances == null) { return; }
-
-        Method onExit = null, onEnter = null;
-        Object enterInstance = null, exitInstance = null;
-        for(Map.Entry<String, List<StateEventEntry>> entry : mStateEventMap.entrySet()) {
-
-            List<StateEventEntry> entries = entry.getValue();
-            for(StateEventEntry stateEventEntry : entries) {
-
-                if(entry.getKey().equals(transition.getFromState())) {
-
-                    // Get the OnExit (OnEnter if reversed)
-                    if(reverse) {
-                        if(stateEventEntry.mStateOnEnterMethod != null) {
-                            onEnter = stateEventEntry.mStateOnEnterMethod;
-                            enterInstance = stateEventEntry.mInstance;
-                        }
-                    }
-                    else {
-                        if(stateEventEntry.mStateOnExitMethod != null) {
-                            onExit = stateEventEntry.mStateOnExitMethod;
-                            exitInstance = stateEventEntry.mInstance;
-                        }
-                    }
-                }
+    private void initStateListeners() {
 
-                if(entry.getKey().equals(transition.getToState())) {
-
-                    // Get the OnEnter (OnExit if reversed)
-                    if(reverse) {
-                        if(stateEventEntry.mStateOnExitMethod != null) {
-                            onExit = stateEventEntry.mStateOnExitMethod;
-                            exitInstance = stateEventEntry.mInstance;
-                        }
-                    }
-                    else {
-                        if(stateEventEntry.mStateOnEnterMethod != null) {
-                            onEnter = stateEventEntry.mStateOnEnterMethod;
-                            enterInstance = stateEventEntry.mInstance;
-                        }
-                    }
-                }
+        if(!mEventFanOut || mStateEventMap == null) {
+            mStateListeners = null;
+            return;
+        }
+
+        mStateListeners = new HashMap<>();
+        for(String state : mStateEventMap.keySet()) {
+            mStateListeners.put(state, new StateListeners());
+        }
+
+        for(Object instance : getRegisteredInstances()) {
+
+            List<StateEventEntry> entries = mClassEventEntries.get(instance.getClass());
+            if(entries != null) {
+                addStateListeners(entries, instance);
             }
         }
+    }
 
-        if(onExit != null && exitInstance != null) {
+    private void addStateListeners(List<StateEventEntry> entries, Object object) {
 
-            try {
-                onExit.invoke(exitInstance);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
-                e.printStackTrace();
+        Map<String, StateListeners> stateListeners = mStateListeners;
+        if(stateListeners == null) { return; }
+
+        for(StateEventEntry stateEventEntry : entries) {
+
+            StateListeners listeners = stateListeners.get(stateEventEntry.mState);
+            if(listeners != null) {
+                listeners.add(stateEventEntry.mEvents, object, mWeakListeners);
             }
         }
+    }
 
-        if(onEnter != null && enterInstance != null) {
+    private void removeStateListeners(List<StateEventEntry> entries, Object object) {
 
-            try {
-                onEnter.invoke(enterInstance);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
-                e.printStackTrace();
+        Map<String, StateListeners> stateListeners = mStateListeners;
+        if(stateListeners == null) { return; }
+
+        for(StateEventEntry stateEventEntry : entries) {
+
+            StateListeners listeners = stateListeners.get(stateEventEntry.mState);
+            if(listeners != null) {
+                listeners.remove(object);
             }
         }
     }
 
-    private static StateEventEntry getMethodsForState(final Class<?> type, final Object object, String state) {
+    private void setGuardInstances(Class cls, Object instance, boolean weak) {
 
-        final List<Method> allMethods = new ArrayList<Method>(Arrays.asList(type.getDeclaredMethods()));
+        List<ListenerGuard> listenerGuards = mListenerGuards;
+        if(listenerGuards == null) { return; }
 
-        StateEventEntry stateEventEntry = new StateEventEntry(type, object);
-        for (final Method method : allMethods) {
+        for(ListenerGuard guard : listenerGuards) {
+            if(guard.getListenerClass() == cls) { guard.setInstance(instance, weak); }
+        }
+    }
 
-            if (method.isAnnotationPresent(OnEnter.class) && method.getAnnotation(OnEnter.class).state().equals(state)) {
+    /**
+     * @return If every guard of the transition allows it (in evaluation order, stopping at the first that does not)
+     */
+    private boolean checkGuards(TransitionTable table, int transitionId) {
 
-                if(stateEventEntry.mStateOnEnterMethod != null) {
-                    Log.w(TAG, "OnEnter method on class " + type.getSimpleName() + " for state " +  state + " already exists, being overwritten...");
-                }
-                stateEventEntry.mStateOnEnterMethod = method;
+        TransitionGuard[][] guards = mGuards;
+        if(guards == null) {
+            synchronized (this) {
+                guards = compileGuards(table);
             }
+        }
+
+        if(transitionId >= guards.length || guards[transitionId] == null) { return true; }
+
+        TransitionGuard[] transitionGuards = guards[transitionId];
+        for(int i = 0; i < transitionGuards.length; i++) {
+            if(!transitionGuards[i].isAllowed(this)) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Resolve the guards to the transition ids of the table (holding the instance lock)
+     */
+    private TransitionGuard[][] compileGuards(TransitionTable table) {
 
-            if(method.isAnnotationPresent(OnExit.class) && method.getAnnotation(OnExit.class).state().equals(state)) {
+        if(mGuards != null) { return mGuards; }
 
-                if(stateEventEntry.mStateOnExitMethod != null) {
-                    Log.w(TAG, "OnExit method on class " + type.getSimpleName() + " for state " + state + " already exists, being overwritten...");
+        TransitionGuard[][] guards = NO_GUARDS;
+        if(mTransitionGuards != null) {
+            for(Map.Entry<Transition, List<TransitionGuard>> entry : mTransitionGuards.entrySet()) {
+                for(TransitionGuard guard : entry.getValue()) {
+                    guards = appendGuard(table, guards, entry.getKey().getFromState(), entry.getKey().getToState(), guard);
                 }
-                stateEventEntry.mStateOnExitMethod = method;
+            }
+        }
+        if(mListenerGuards != null) {
+            for(ListenerGuard guard : mListenerGuards) {
+                guards = appendGuard(table, guards, guard.getFromState(), guard.getToState(), guard);
+            }
+        }
+
+        mGuards = guards;
+        return guards;
+    }
+
+    private static TransitionGuard[][] appendGuard(TransitionTable table, TransitionGuard[][] guards, String fromState, String toState, TransitionGuard guard) {
+
+        int transitionId = table.getTransitionId(table.getStateId(fromState), table.getStateId(toState));
+        if(transitionId == TransitionTable.NO_ID) {
+            Log.w(TAG, "Guard of unknown transition " + fromState + " -> " + toState + " ignored");
+            return guards;
+        }
+
+        if(guards == NO_GUARDS) { guards = new TransitionGuard[table.getTransitionCount()][]; }
+
+        TransitionGuard[] transitionGuards = guards[transitionId];
+        if(transitionGuards == null) {
+            transitionGuards = new TransitionGuard[] { guard };
+        }
+        else {
+            transitionGuards = Arrays.copyOf(transitionGuards, transitionGuards.length + 1);
+            transitionGuards[transitionGuards.length - 1] = guard;
+        }
+        guards[transitionId] = transitionGuards;
+        return guards;
+    }
+
+    private void invalidateEventPlans() {
+
+        mEventPlans = null;
+        mReverseEventPlans = null;
+    }
+
+    /**
+     * Method that calls event of annotated methods for classes related to flows
+     * @param table The table the transition id belongs to
+     * @param transitionId Id of the transition taken (see {@link TransitionTable})
+     * @param reverse If the transition is being taken backwards (moving to a previous state)
+     */
+    private void callEvents(TransitionTable table, int transitionId, boolean reverse) {
+        dispatch(getEvents(table, transitionId, reverse));
+    }
+
+    /**
+     * Events of a transition, to be dispatched right away (see {@link #callEvents(TransitionTable, int, boolean)})
+     * @return The events to call ({@link EventPlan#EMPTY} if there are none, or the transition was recorded by the coalescer)
+     */
+    private EventPlan getEvents(TransitionTable table, int transitionId, boolean reverse) {
+
+        if(transitionId == TransitionTable.NO_ID) { return EventPlan.EMPTY; }
+
+        EventCoalescer coalescer = mEventCoalescer;
+        if(coalescer != null) {
+
+            // Moving back exits the "to" state and enters the "from" state
+            int fromStateId = table.getFromStateId(transitionId), toStateId = table.getToStateId(transitionId);
+            coalescer.onTransition(table, reverse ? toStateId : fromStateId, reverse ? fromStateId : toStateId);
+            return EventPlan.EMPTY;
+        }
+
+        if(mStateEventMap == null || mEventClassInstances == null) { return EventPlan.EMPTY; }
+
+        // Plans are built lazily per direction; concurrent transitions may both build a missing array / plan, which is harmless
+        EventPlan[] plans = reverse ? mReverseEventPlans : mEventPlans;
+        if(plans == null || plans.length != table.getTransitionCount()) {
+
+            plans = new EventPlan[table.getTransitionCount()];
+            if(reverse) {
+                mReverseEventPlans = plans;
+            }
+            else {
+                mEventPlans = plans;
             }
         }
 
-        if(stateEventEntry.mStateOnExitMethod != null || stateEventEntry.mStateOnEnterMethod != null) {
-            return stateEventEntry;
+        EventPlan plan = plans[transitionId];
+        if(plan == null) {
+
+            String fromState = table.getStateName(table.getFromStateId(transitionId));
+            String toState = table.getStateName(table.getToStateId(transitionId));
+
+            // Moving back exits the "to" state and enters the "from" state
+            plan = reverse ? buildEventPlan(toState, fromState) : buildEventPlan(fromState, toState);
+            plans[transitionId] = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * @return Plan calling the OnExit of the state being left then the OnEnter of the state being entered
+     */
+    private EventPlan buildEventPlan(String exitState, String enterState) {
+
+        if(mStateListeners != null) {
+            return EventPlan.fanOut(mStateListeners.get(exitState), mStateListeners.get(enterState));
+        }
+        return EventPlan.build(mStateEventMap.get(exitState), mStateEventMap.get(enterState));
+    }
+
+    private void dispatch(Runnable events) {
+
+        // Queued while holding the lock (locked transitions), so the events run in the order of the transitions
+        SerialExecutor executor = mEventExecutor;
+        if(executor != null && events != EventPlan.EMPTY) {
+            executor.execute(events);
         }
         else {
-            return null;
+            events.run();
+        }
+    }
+
+    /**
+     * Call the events of a burst of transitions coalesced by the {@link EventCoalescer}, from the first state to the last one
+     * (nothing if several transitions ended where they started, a single self-loop still calls its events), then report the
+     * states that were skipped
+     */
+    void dispatchCoalesced(String exitState, String enterState, int transitionCount, final List<String> skippedStates,
+                           final OnStatesSkippedListener listener) {
+
+        EventPlan plan = EventPlan.EMPTY;
+        synchronized (this) {
+            boolean roundTrip = transitionCount > 1 && exitState.equals(enterState);
+            if(!roundTrip && mStateEventMap != null && mEventClassInstances != null) {
+                plan = buildEventPlan(exitState, enterState);
+            }
+        }
+        dispatch(plan);
+
+        if(listener != null && !skippedStates.isEmpty()) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onStatesSkipped(FiniteFlow.this, skippedStates);
+                }
+            });
         }
     }
     // endregion
@@ -540,16 +1790,134 @@ public class FiniteFlow implements Serializable {
 
 
     // region Classes
+    /**
+     * Immutable state + history of a flow with lock-free transitions: every transition links a new node to the previous one
+     * and moving back through the history returns to the previous node
+     */
+    private static final class HistoryNode {
+
+        final int mStateId;
+
+        /**
+         * Transition taken to reach this node (NO_ID for the oldest node)
+         */
+        final int mTransitionId;
+
+        final HistoryNode mPrevious;
+
+        /**
+         * Number of transitions in the history up to this node
+         */
+        final int mDepth;
+
+        /**
+         * Depth of the oldest node still in the history (older nodes are over the capacity and waiting to be trimmed)
+         */
+        final int mOldestDepth;
+
+        HistoryNode(int stateId, int transitionId, HistoryNode previous) {
+            this(stateId, transitionId, previous, previous != null ? previous.mOldestDepth : 0);
+        }
+
+        HistoryNode(int stateId, int transitionId, HistoryNode previous, int oldestDepth) {
+            mStateId = stateId;
+            mTransitionId = transitionId;
+            mPrevious = previous;
+            mDepth = previous != null ? previous.mDepth + 1 : 0;
+            mOldestDepth = oldestDepth;
+        }
+
+        HistoryNode withState(int stateId) {
+            return new HistoryNode(stateId, mTransitionId, mPrevious, mOldestDepth);
+        }
+
+        /**
+         * @return If there is a transition in the history to move back through
+         */
+        boolean hasHistory() {
+            return mDepth > mOldestDepth;
+        }
+
+        /**
+         * @return The node moving back through the latest transition returns to (a copy keeping the oldest depth, if it had an older one)
+         */
+        HistoryNode popped() {
+
+            HistoryNode previous = mPrevious;
+            if(previous.mOldestDepth >= mOldestDepth) { return previous; }
+            return new HistoryNode(previous.mStateId, previous.mTransitionId, previous.mPrevious, mOldestDepth);
+        }
+
+        /**
+         * @return Copy of this node with only the latest capacity transitions in its history
+         */
+        HistoryNode trimmed(TransitionTable table, int capacity) {
+
+            TransitionHistory history = toHistory(capacity);
+            HistoryNode head = new HistoryNode(table.getFromStateId(history.get(0)), TransitionTable.NO_ID, null);
+            for(int i = 0; i < history.size(); i++) {
+                head = new HistoryNode(table.getToStateId(history.get(i)), history.get(i), head);
+            }
+            return head.withState(mStateId);
+        }
+
+        /**
+         * @param capacity Capacity of the history (the oldest transitions are dropped if there are more)
+         */
+        TransitionHistory toHistory(int capacity) {
+
+            int size = mDepth - mOldestDepth;
+            int[] transitionIds = new int[size];
+            int index = size;
+            for(HistoryNode node = this; index > 0; node = node.mPrevious) {
+                transitionIds[--index] = node.mTransitionId;
+            }
+
+            TransitionHistory history = new TransitionHistory(capacity);
+            for(int transitionId : transitionIds) {
+                history.push(transitionId);
+            }
+            return history;
+        }
+    }
+
+    /**
+     * A registered listener instance (weakly held if it was registered with weak listeners)
+     */
+    private static final class Registration {
+
+        final Class mListenerClass;
+        private final Object mInstance;
+        private final WeakReference<Object> mWeakInstance;
+
+        Registration(Class listenerClass, Object instance, boolean weak) {
+            mListenerClass = listenerClass;
+            mInstance = weak ? null : instance;
+            mWeakInstance = weak ? new WeakReference<>(instance) : null;
+        }
+
+        Object getInstance() {
+            return mWeakInstance != null ? mWeakInstance.get() : mInstance;
+        }
+    }
+
     public static class StateEventEntry {
 
         private Class mStateClass;
         private Object mInstance;
-        private Method mStateOnEnterMethod;
-        private Method mStateOnExitMethod;
+        private WeakReference<Object> mWeakInstance;
+        private String mState;
+
+        /**
+         * Event methods / handlers of the class for the state (shared between flows, see {@link ListenerInfo})
+         */
+        private ListenerInfo.StateEvents mEvents;
 
-        public StateEventEntry(Class stateClass, Object instance) {
+        StateEventEntry(Class stateClass, Object instance, String state, ListenerInfo.StateEvents events) {
             mStateClass = stateClass;
             mInstance = instance;
+            mState = state;
+            mEvents = events;
         }
 
         public Class getStateClass() {
@@ -557,15 +1925,40 @@ public class FiniteFlow implements Serializable {
         }
 
         public Object getInstance() {
+
+            WeakReference<Object> weakInstance = mWeakInstance;
+            if(weakInstance != null) {
+
+                Object instance = weakInstance.get();
+                if(instance == null) {
+                    // Collected without being unregistered, drop the stale reference
+                    mWeakInstance = null;
+                }
+                return instance;
+            }
             return mInstance;
         }
 
+        void setInstance(Object instance, boolean weak) {
+
+            mInstance = weak ? null : instance;
+            mWeakInstance = weak && instance != null ? new WeakReference<>(instance) : null;
+        }
+
         public Method getStateOnEnterMethod() {
-            return mStateOnEnterMethod;
+            return mEvents.getOnEnterMethod();
         }
 
         public Method getStateOnExitMethod() {
-            return mStateOnExitMethod;
+            return mEvents.getOnExitMethod();
+        }
+
+        EventHandler getOnEnterHandler() {
+            return mEvents.getOnEnterHandler();
+        }
+
+        EventHandler getOnExitHandler() {
+            return mEvents.getOnExitHandler();
         }
 
         @Override
@@ -582,22 +1975,17 @@ public class FiniteFlow implements Serializable {
             if (mStateClass != null ? !mStateClass.equals(that.mStateClass) : that.mStateClass != null) {
                 return false;
             }
-            if (mInstance != null ? !mInstance.equals(that.mInstance) : that.mInstance != null) {
+            if (getInstance() != null ? !getInstance().equals(that.getInstance()) : that.getInstance() != null) {
                 return false;
             }
-            if (mStateOnEnterMethod != null ? !mStateOnEnterMethod.equals(that.mStateOnEnterMethod) : that.mStateOnEnterMethod != null) {
-                return false;
-            }
-            return !(mStateOnExitMethod != null ? !mStateOnExitMethod.equals(that.mStateOnExitMethod) : that.mStateOnExitMethod != null);
-
+            return mEvents == that.mEvents;
         }
 
         @Override
         public int hashCode() {
             int result = mStateClass != null ? mStateClass.hashCode() : 0;
-            result = 31 * result + (mInstance != null ? mInstance.hashCode() : 0);
-            result = 31 * result + (mStateOnEnterMethod != null ? mStateOnEnterMethod.hashCode() : 0);
-            result = 31 * result + (mStateOnExitMethod != null ? mStateOnExitMethod.hashCode() : 0);
+            result = 31 * result + (getInstance() != null ? getInstance().hashCode() : 0);
+            result = 31 * result + (mEvents != null ? mEvents.hashCode() : 0);
             return result;
         }
     }
@@ -622,15 +2010,83 @@ public class FiniteFlow implements Serializable {
     }
 
     public String getCurrentState() {
-        return mCurrentState;
+
+        int stateId = getCurrentStateId();
+        return stateId != TransitionTable.NO_ID ? mStates.get(stateId) : null;
+    }
+
+    public boolean isConcurrent() {
+        return mHead != null;
+    }
+
+    public boolean isWeakListeners() {
+        return mWeakListeners;
+    }
+
+    public boolean isEventFanOut() {
+        return mEventFanOut;
+    }
+
+    /**
+     * @return Window events are coalesced within (see {@link #setEventCoalescing(long, OnStatesSkippedListener)}), 0 if disabled
+     */
+    public long getEventCoalescingWindow() {
+
+        EventCoalescer coalescer = mEventCoalescer;
+        return coalescer != null ? coalescer.getWindowMillis() : 0;
+    }
+
+    OnStatesSkippedListener getStatesSkippedListener() {
+
+        EventCoalescer coalescer = mEventCoalescer;
+        return coalescer != null ? coalescer.getListener() : null;
+    }
+
+    /**
+     * @return The executor events are called on, null if they are called inline
+     */
+    public Executor getEventExecutor() {
+
+        SerialExecutor eventExecutor = mEventExecutor;
+        Executor executor = eventExecutor != null ? eventExecutor.getExecutor() : null;
+        return executor != SerialExecutor.INLINE ? executor : null;
+    }
+
+    public int getHistoryCapacity() {
+        return mHistoryCapacity;
+    }
+
+    public boolean isCollapseSelfLoops() {
+        return mCollapseSelfLoops;
+    }
+
+    public boolean isCollapseCycles() {
+        return mCollapseCycles;
+    }
+
+    public FlowDefinition getDefinition() {
+        return mDefinition;
     }
 
-    public Stack<Transition> getTransitionHistory() {
-        return mTransitionHistory;
+    /**
+     * @return Snapshot of the history (oldest transition at the bottom), null if no transition has been taken yet
+     */
+    public synchronized Stack<Transition> getTransitionHistory() {
+
+        HistoryNode head = mHead;
+        if(head != null) { return head.toHistory(mHistoryCapacity).toStack(getTransitionTable()); }
+
+        decodeHistory();
+        return mTransitionHistory != null ? mTransitionHistory.toStack(getTransitionTable()) : null;
     }
 
+    /**
+     * @return Read-only view of the instances, null if none have been requested since the last {@link #clearAllInstances()}
+     */
     public static Map<String, FiniteFlow> getFiniteFlowInstances() {
-        return mFiniteFlowInstances;
+
+        FlowRegistry registry = mRegistry;
+        return registry != null ? registry.getInstances() : null;
     }
 
     public String getIdentifier() {
@@ -647,8 +2103,8 @@ public class FiniteFlow implements Serializable {
 
         out.writeObject(mStates);
         out.writeObject(mTransitions);
-        out.writeObject(mCurrentState);
-        out.writeObject(mTransitionHistory);
+        out.writeObject(getCurrentState());
+        out.writeObject(getTransitionHistory());
         out.writeObject(mIdentifier);
 
         // For now, don't write event stuff
@@ -656,13 +2112,144 @@ public class FiniteFlow implements Serializable {
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 
-        mStates = (List<String>) in.readObject();
-        mTransitions = (List<Transition>) in.readObject();
-        mCurrentState = (String) in.readObject();
-        mTransitionHistory = (Stack<Transition>) in.readObject();
+        // Copied, as the lists of a shared definition are unmodifiable (the definition itself is not written)
+        List<String> states = (List<String>) in.readObject();
+        List<Transition> transitions = (List<Transition>) in.readObject();
+        mStates = states != null ? new ArrayList<>(states) : null;
+        mTransitions = transitions != null ? new ArrayList<>(transitions) : null;
+        String currentState = (String) in.readObject();
+        mCurrentStateId = currentState != null && mStates != null ? mStates.indexOf(currentState) : TransitionTable.NO_ID;
+        Stack<Transition> transitionHistory = (Stack<Transition>) in.readObject();
         mIdentifier = (String) in.readObject();
 
+        if(transitionHistory != null) {
+
+            TransitionTable table = getTransitionTable();
+            mTransitionHistory = new TransitionHistory(0);
+            for(Transition transition : transitionHistory) {
+
+                int transitionId = table.getTransitionId(table.getStateId(transition.getFromState()), table.getStateId(transition.getToState()));
+                if(transitionId != TransitionTable.NO_ID) {
+                    mTransitionHistory.push(transitionId);
+                }
+                else {
+                    Log.w(TAG, "Unknown transition in the history not read: " + transition.toString());
+                }
+            }
+        }
+
         // For now, don't read event stuff (and also deal with the unchecked casts above)
     }
+
+    /**
+     * Write the flow in the compact {@link FlowFormat} (state names are only written once, everything else as ids)
+     */
+    synchronized void writeBinary(FlowFormat.Writer out) {
+
+        out.writeString(mIdentifier);
+
+        int stateCount = mStates != null ? mStates.size() : 0;
+        out.writeVarInt(stateCount);
+        for(int i = 0; i < stateCount; i++) {
+            out.writeString(mStates.get(i));
+        }
+
+        TransitionTable table = stateCount > 0 ? getTransitionTable() : null;
+        int transitionCount = table != null ? table.getTransitionCount() : 0;
+        out.writeVarInt(transitionCount);
+        for(int i = 0; i < transitionCount; i++) {
+            out.writeVarInt(table.getFromStateId(i));
+            out.writeVarInt(table.getToStateId(i));
+        }
+
+        // Ids are written + 1, so that 0 is "none"
+        out.writeVarInt(getCurrentStateId() + 1);
+
+        // A history that was not decoded is written back as is
+        if(mEncodedHistory != null) {
+            mEncodedHistory.copyTo(out);
+            return;
+        }
+
+        HistoryNode head = mHead;
+        TransitionHistory history = head != null ? head.toHistory(mHistoryCapacity) : mTransitionHistory;
+        out.writeVarInt(history != null ? history.size() + 1 : 0);
+        if(history != null) {
+            for(int i = 0; i < history.size(); i++) {
+                out.writeVarInt(history.get(i));
+            }
+        }
+    }
+
+    /**
+     * Read a flow written by {@link #writeBinary(FlowFormat.Writer)}
+     * @throws IOException If the flow references ids that are out of range
+     */
+    static FiniteFlow readBinary(FlowFormat.Reader in) throws IOException {
+
+        FiniteFlow flow = new FiniteFlow(in.readString());
+
+        int stateCount = in.readVarInt();
+        if(stateCount > 0) {
+
+            flow.mStates = new ArrayList<>(stateCount);
+            for(int i = 0; i < stateCount; i++) {
+                flow.mStates.add(in.readString());
+            }
+        }
+
+        int transitionCount = in.readVarInt();
+        if(transitionCount > 0) {
+
+            flow.mTransitions = new ArrayList<>(transitionCount);
+            for(int i = 0; i < transitionCount; i++) {
+                flow.mTransitions.add(new Transition(readState(in, flow.mStates), readState(in, flow.mStates)));
+            }
+        }
+
+        int currentStateId = in.readVarInt() - 1;
+        if(currentStateId >= stateCount) { throw new IOException("Unknown state id " + currentStateId); }
+        flow.mCurrentStateId = currentStateId;
+
+        // Most flows read are only moved forward (if at all), so the history is decoded when it is first needed
+        flow.mEncodedHistory = in.rest();
+        return flow;
+    }
+
+    /**
+     * Decode the history of a flow read in the binary format if it was not yet, holding the instance lock
+     * Ids were covered by the format's CRC, but a history that does not match the transitions is dropped (logged)
+     */
+    private void decodeHistory() {
+
+        FlowFormat.Reader in = mEncodedHistory;
+        if(in == null) { return; }
+        mEncodedHistory = null;
+
+        try {
+            int historySize = in.readVarInt() - 1;
+            if(historySize < 0) { return; }
+
+            int transitionCount = mTransitions != null ? mTransitions.size() : 0;
+            TransitionHistory history = new TransitionHistory(mHistoryCapacity);
+            for(int i = 0; i < historySize; i++) {
+
+                int transitionId = in.readVarInt();
+                if(transitionId < 0 || transitionId >= transitionCount) { throw new IOException("Unknown transition id " + transitionId); }
+                history.push(transitionId);
+            }
+            mTransitionHistory = history;
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Exception decoding the history of " + mIdentifier + ", it is dropped", e);
+        }
+    }
+
+    private static String readState(FlowFormat.Reader in, List<String> states) throws IOException {
+
+        int stateId = in.readVarInt();
+        if(states == null || stateId < 0 || stateId >= states.size()) { throw new IOException("Unknown state id " + stateId); }
+        return states.get(stateId);
+    }
     // endregion
 }
\ No newline at end of file
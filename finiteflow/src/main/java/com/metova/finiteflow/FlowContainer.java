@@ -0,0 +1,214 @@
+package com.metova.finiteflow;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Single file holding many persisted flows (see {@link FiniteFlow#persistAllInstances(Context)}), so they are written with one
+ * sequential write and each one can be read on its own through the index, without reading / decoding the others
+ *
+ * Header: magic (int), version (byte), number of flows (int), index length (int), CRC32 of the index (int)
+ * Index: for each flow, its identifier (modified UTF-8), offset from the start of the file (int) and length (int)
+ * Then the flows, each in the {@link FlowFormat} (with its own CRC)
+ */
+final class FlowContainer {
+
+    static final String DEFAULT_NAME = "finiteflow_instances";
+
+    /**
+     * "FFCT"
+     */
+    private static final int MAGIC = 0x46464354;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 17;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Whole file, memory-mapped if it is large (so flows that are never read are never paged in)
+     */
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Offset / length of the flows that were not taken yet
+     */
+    private final Map<String, int[]> mIndex;
+
+    private FlowContainer(ByteBuffer buffer, Map<String, int[]> index) {
+        mBuffer = buffer;
+        mIndex = index;
+    }
+
+    /**
+     * Replace the container with the flows
+     * @param flows Identifier to {@link FlowFormat} bytes of each flow
+     */
+    static void write(Context context, String name, Map<String, ByteBuffer> flows) throws IOException {
+
+        // Each index entry has a fixed size, so the offsets are known from the size of an index without them
+        int indexLength = writeIndex(flows, 0).length;
+        ByteBuffer indexBuffer = ByteBuffer.wrap(writeIndex(flows, HEADER_SIZE + indexLength));
+        long size = HEADER_SIZE + indexLength;
+        for(ByteBuffer flow : flows.values()) {
+            size += flow.remaining();
+        }
+        if(size > Integer.MAX_VALUE) { throw new IOException("Too many flows for a container"); }
+
+        CRC32 crc = new CRC32();
+        crc.update(indexBuffer.array(), 0, indexBuffer.remaining());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) VERSION).putInt(flows.size()).putInt(indexBuffer.remaining()).putInt((int) crc.getValue()).flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[flows.size() + 2];
+        buffers[0] = header;
+        buffers[1] = indexBuffer;
+        int i = 2;
+        for(ByteBuffer flow : flows.values()) {
+            buffers[i++] = flow.duplicate();
+        }
+
+        // Written to a temporary file then renamed, so a crash never leaves a partial container
+        File file = context.getFileStreamPath(name);
+        File temp = context.getFileStreamPath(name + TEMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            FileChannel channel = fos.getChannel();
+            long remaining = size;
+            while(remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            channel.force(false);
+        } finally {
+            fos.close();
+        }
+
+        if(!temp.renameTo(file)) { throw new IOException("Could not replace " + file); }
+    }
+
+    private static byte[] writeIndex(Map<String, ByteBuffer> flows, int offset) throws IOException {
+
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        for(Map.Entry<String, ByteBuffer> entry : flows.entrySet()) {
+
+            int length = entry.getValue().remaining();
+            index.writeUTF(entry.getKey());
+            index.writeInt(offset);
+            index.writeInt(length);
+            offset += length;
+        }
+        index.close();
+        return indexBytes.toByteArray();
+    }
+
+    /**
+     * Read the container's index (the flows are read when taken)
+     * @return The container, null if there is none
+     */
+    static FlowContainer open(Context context, String name) throws IOException {
+
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(context.getFileStreamPath(name));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        ByteBuffer buffer;
+        try {
+            buffer = FileStorageBackend.read(fis.getChannel());
+        } finally {
+            fis.close();
+        }
+
+        if(buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) { throw new IOException("Not a flow container"); }
+
+        int version = buffer.get(4);
+        if(version > VERSION) { throw new IOException("Unsupported flow container version " + version); }
+
+        int count = buffer.getInt(5);
+        int indexLength = buffer.getInt(9);
+        if(count < 0 || indexLength < 0 || indexLength > buffer.remaining() - HEADER_SIZE) { throw new IOException("Truncated flow container"); }
+
+        byte[] indexBytes = new byte[indexLength];
+        ByteBuffer indexBuffer = buffer.duplicate();
+        indexBuffer.position(HEADER_SIZE);
+        indexBuffer.get(indexBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(indexBytes, 0, indexLength);
+        if((int) crc.getValue() != buffer.getInt(13)) { throw new IOException("Corrupted flow container (CRC mismatch)"); }
+
+        Map<String, int[]> index = new HashMap<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(indexBytes));
+        for(int i = 0; i < count; i++) {
+
+            String identifier = in.readUTF();
+            int offset = in.readInt();
+            int length = in.readInt();
+            if(offset < HEADER_SIZE + indexLength || length < 0 || offset > buffer.limit() - length) {
+                throw new IOException("Truncated flow container");
+            }
+            index.put(identifier, new int[] { offset, length });
+        }
+        return new FlowContainer(buffer, index);
+    }
+
+    /**
+     * Decode a flow of the container, which is then no longer part of it (it is in the registry from then on)
+     * @return The flow, null if the container does not hold it (anymore)
+     */
+    synchronized FiniteFlow take(String identifier) throws IOException {
+
+        ByteBuffer flow = get(identifier);
+        if(flow == null) { return null; }
+
+        mIndex.remove(identifier);
+        return FlowFormat.decode(flow);
+    }
+
+    synchronized boolean remove(String identifier) {
+        return mIndex.remove(identifier) != null;
+    }
+
+    synchronized boolean isEmpty() {
+        return mIndex.isEmpty();
+    }
+
+    /**
+     * @return Identifier to {@link FlowFormat} bytes of the flows that were not taken yet
+     */
+    synchronized Map<String, ByteBuffer> getFlows() {
+
+        Map<String, ByteBuffer> flows = new LinkedHashMap<>();
+        for(String identifier : mIndex.keySet()) {
+            flows.put(identifier, get(identifier));
+        }
+        return flows;
+    }
+
+    private ByteBuffer get(String identifier) {
+
+        int[] entry = mIndex.get(identifier);
+        if(entry == null) { return null; }
+
+        ByteBuffer flow = mBuffer.duplicate();
+        flow.limit(entry[0] + entry[1]);
+        flow.position(entry[0]);
+        return flow.slice();
+    }
+}
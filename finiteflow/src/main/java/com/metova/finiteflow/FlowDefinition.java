@@ -0,0 +1,198 @@
+package com.metova.finiteflow;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable, validated set of states / transitions / starting state, compiled once and shareable between any number of
+ * FiniteFlow instances (see {@link FiniteFlow#setDefinition(FlowDefinition)}). Instances only keep their own current state / history.
+ */
+public final class FlowDefinition {
+
+    private static final String TAG = FlowDefinition.class.getSimpleName();
+
+    /**
+     * Definitions of {@link Flow} annotated classes, built once per class
+     */
+    private static final Map<Class<?>, FlowDefinition> sAnnotatedDefinitions = new ConcurrentHashMap<>();
+
+    private final List<String> mStates;
+    private final List<Transition> mTransitions;
+    private final String mInitialState;
+    private final TransitionTable mTransitionTable;
+
+    /**
+     * The states / transitions MUST already be validated (no duplicates, transitions / initial state only reference the states)
+     */
+    private FlowDefinition(List<String> states, List<Transition> transitions, String initialState) {
+
+        mStates = Collections.unmodifiableList(states);
+        mTransitions = Collections.unmodifiableList(transitions);
+        mInitialState = initialState;
+        mTransitionTable = TransitionTable.compile(mStates, mTransitions);
+    }
+
+    /**
+     * Get the (shared) definition of a class annotated with {@link Flow}.
+     * If the finiteflow-compiler annotation processor ran for the class, its pre-validated definition is used instead of reflection.
+     * @param annotatedClass Class annotated with {@link Flow}
+     * @return The definition, built once per class
+     * @throws FlowInitializationException If the class is not annotated or a transition references an unknown state
+     * @throws FlowInvalidException If the initial state does not exist
+     */
+    public static FlowDefinition forFlow(@NonNull Class<?> annotatedClass) throws FlowInitializationException, FlowInvalidException {
+
+        FlowDefinition definition = sAnnotatedDefinitions.get(annotatedClass);
+        if(definition == null) {
+
+            GeneratedFlow generatedFlow = GeneratedFlows.find(annotatedClass);
+            definition = generatedFlow != null ? fromGeneratedFlow(generatedFlow) : fromAnnotation(annotatedClass);
+            sAnnotatedDefinitions.put(annotatedClass, definition);
+        }
+        return definition;
+    }
+
+    private static FlowDefinition fromGeneratedFlow(GeneratedFlow generatedFlow) {
+
+        // Already validated at compile time
+        String[] transitions = generatedFlow.getTransitions();
+        List<Transition> transitionList = new ArrayList<>(transitions.length / 2);
+        for(int i = 0; i < transitions.length; i += 2) {
+            transitionList.add(new Transition(transitions[i], transitions[i + 1]));
+        }
+
+        return new FlowDefinition(new ArrayList<>(Arrays.asList(generatedFlow.getStates())), transitionList, generatedFlow.getInitialState());
+    }
+
+    private static FlowDefinition fromAnnotation(Class<?> annotatedClass) throws FlowInitializationException, FlowInvalidException {
+
+        Flow flow = annotatedClass.getAnnotation(Flow.class);
+        if(flow == null) { throw new FlowInitializationException(); }
+
+        Builder builder = new Builder();
+        for(String state : flow.states()) {
+            builder.addState(state);
+        }
+        for(FlowTransition transition : flow.transitions()) {
+            builder.addTransition(transition.from(), transition.to());
+        }
+        return builder.setInitialState(flow.initialState()).buildAnnotated();
+    }
+
+
+    // region Accessors
+    /**
+     * @return Unmodifiable list of the states
+     */
+    public List<String> getStates() {
+        return mStates;
+    }
+
+    /**
+     * @return Unmodifiable list of the transitions (shared, do not modify the Transition objects)
+     */
+    public List<Transition> getTransitions() {
+        return mTransitions;
+    }
+
+    public String getInitialState() {
+        return mInitialState;
+    }
+
+    TransitionTable getTransitionTable() {
+        return mTransitionTable;
+    }
+    // endregion
+
+
+    /**
+     * Collects states / transitions / starting state and validates them once in {@link #build()}
+     */
+    public static final class Builder {
+
+        private final Set<String> mStates = new LinkedHashSet<>();
+        private final Set<Transition> mTransitions = new LinkedHashSet<>();
+        private String mInitialState;
+
+        /**
+         * Add a state to the definition's list of states
+         * @param name The state to add
+         * @return Builder instance
+         */
+        public Builder addState(@NonNull String name) {
+
+            if(!mStates.add(name)) {
+                Log.d(TAG, "Duplicate state not added: " + name);
+            }
+            return this;
+        }
+
+        /**
+         * Add a transition to the definition's list of transitions (both states must be added before calling {@link #build()})
+         * @param fromState The state to move from
+         * @param toState The state to move to
+         * @return Builder instance
+         */
+        public Builder addTransition(@NonNull String fromState, @NonNull String toState) {
+
+            Transition transition = new Transition(fromState, toState);
+            if(!mTransitions.add(transition)) {
+                Log.d(TAG, "Duplicate transition not added: " + transition.toString());
+            }
+            return this;
+        }
+
+        /**
+         * Set the state new flows start at
+         * @param state The state to begin at (must be added before calling {@link #build()})
+         * @return Builder instance
+         */
+        public Builder setInitialState(@NonNull String state) {
+
+            mInitialState = state;
+            return this;
+        }
+
+        /**
+         * Validate and compile the definition
+         * @return The immutable definition
+         * @throws FlowInitializationException If there are no states / transitions / starting state, or a transition references an unknown state
+         * @throws FlowInvalidException If the initial state does not exist
+         */
+        public FlowDefinition build() throws FlowInitializationException, FlowInvalidException {
+
+            if(mTransitions.isEmpty()) { throw new FlowInitializationException(); }
+            return buildAnnotated();
+        }
+
+        /**
+         * Validate and compile the definition of a {@link Flow} annotation, with the same checks as the annotation processor
+         * (and {@link FiniteFlow#flowFor(Object)} before definitions): a flow without transitions is allowed
+         */
+        FlowDefinition buildAnnotated() throws FlowInitializationException, FlowInvalidException {
+
+            if(mStates.isEmpty() || mInitialState == null) { throw new FlowInitializationException(); }
+
+            for(Transition transition : mTransitions) {
+                if(!mStates.contains(transition.getFromState()) || !mStates.contains(transition.getToState())) {
+                    throw new FlowInitializationException();
+                }
+            }
+
+            if(!mStates.contains(mInitialState)) {
+                throw new FlowInvalidException("The state does not exist for moving to the initial state");
+            }
+
+            return new FlowDefinition(new ArrayList<>(mStates), new ArrayList<>(mTransitions), mInitialState);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.metova.finiteflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary format flows are persisted with (see {@link FiniteFlow#writeBinary(Writer)})
+ *
+ * Header: magic (int), version (byte), CRC32 of the payload (int), payload length (int)
+ * Payload: identifier, state names, transitions as (from, to) state ids, current state id and history as transition ids
+ * Numbers in the payload are unsigned varints and strings are a varint length followed by UTF-8 bytes
+ */
+final class FlowFormat {
+
+    /**
+     * "FFLW", which cannot be mistaken for a Java serialization stream (0xACED)
+     */
+    static final int MAGIC = 0x46464C57;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 13;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CRC_CHUNK_SIZE = 8192;
+
+    private FlowFormat() {}
+
+    /**
+     * @return If the buffer (from its position) starts with a flow in this format
+     */
+    static boolean isFlowFormat(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    static ByteBuffer encode(FiniteFlow flow) {
+
+        Writer writer = new Writer();
+        flow.writeBinary(writer);
+        return writer.finish();
+    }
+
+    static FiniteFlow decode(ByteBuffer buffer) throws IOException {
+        return FiniteFlow.readBinary(new Reader(buffer));
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+
+        CRC32 crc = new CRC32();
+        if(buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        else {
+
+            // Direct / mapped buffers are checked in chunks
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(offset);
+            byte[] chunk = new byte[Math.min(length, CRC_CHUNK_SIZE)];
+            for(int remaining = length; remaining > 0; remaining -= chunk.length) {
+
+                int size = Math.min(remaining, chunk.length);
+                payload.get(chunk, 0, size);
+                crc.update(chunk, 0, size);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+
+    /**
+     * Writes a flow into a growing array, the header is filled in by {@link #finish()}
+     */
+    static final class Writer {
+
+        private byte[] mBytes = new byte[256];
+        private int mSize = HEADER_SIZE;
+
+        void writeVarInt(int value) {
+
+            ensureCapacity(5);
+            while((value & ~0x7F) != 0) {
+                mBytes[mSize++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBytes[mSize++] = (byte) value;
+        }
+
+        void writeBytes(ByteBuffer bytes) {
+
+            int size = bytes.remaining();
+            ensureCapacity(size);
+            bytes.duplicate().get(mBytes, mSize, size);
+            mSize += size;
+        }
+
+        void writeString(String value) {
+
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBytes, mSize, bytes.length);
+            mSize += bytes.length;
+        }
+
+        /**
+         * @return Buffer over the written bytes, including the header
+         */
+        ByteBuffer finish() {
+
+            ByteBuffer buffer = ByteBuffer.wrap(mBytes, 0, mSize);
+            int payloadLength = mSize - HEADER_SIZE;
+            buffer.putInt(0, MAGIC);
+            buffer.put(4, (byte) VERSION);
+            buffer.putInt(5, crc(buffer, HEADER_SIZE, payloadLength));
+            buffer.putInt(9, payloadLength);
+            return buffer;
+        }
+
+        private void ensureCapacity(int size) {
+
+            if(mSize + size > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mSize + size));
+            }
+        }
+    }
+
+    /**
+     * Reads a flow directly from a (heap, direct or mapped) buffer, after checking its header and CRC
+     */
+    static final class Reader {
+
+        private final ByteBuffer mBuffer;
+        private final int mEnd;
+
+        private Reader(ByteBuffer buffer, int end) {
+            mBuffer = buffer;
+            mEnd = end;
+        }
+
+        Reader(ByteBuffer buffer) throws IOException {
+
+            if(!isFlowFormat(buffer)) { throw new IOException("Not a flow"); }
+
+            int start = buffer.position();
+            int version = buffer.get(start + 4);
+            if(version > VERSION) { throw new IOException("Unsupported flow format version " + version); }
+
+            int crc = buffer.getInt(start + 5);
+            int payloadLength = buffer.getInt(start + 9);
+            if(payloadLength < 0 || payloadLength > buffer.remaining() - HEADER_SIZE) { throw new IOException("Truncated flow"); }
+            if(crc(buffer, start + HEADER_SIZE, payloadLength) != crc) { throw new IOException("Corrupted flow (CRC mismatch)"); }
+
+            mBuffer = buffer;
+            mBuffer.position(start + HEADER_SIZE);
+            mEnd = start + HEADER_SIZE + payloadLength;
+        }
+
+        int readVarInt() throws IOException {
+
+            int value = 0;
+            for(int shift = 0; shift < 35; shift += 7) {
+
+                if(mBuffer.position() >= mEnd) { throw new IOException("Truncated flow"); }
+
+                byte b = mBuffer.get();
+                value |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) { return value; }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        /**
+         * @return Reader over the rest of the payload (read later, independently of this reader)
+         */
+        Reader rest() {
+            return new Reader(mBuffer.duplicate(), mEnd);
+        }
+
+        /**
+         * Write the rest of the payload (without reading it)
+         */
+        void copyTo(Writer out) {
+
+            ByteBuffer bytes = mBuffer.duplicate();
+            bytes.limit(mEnd);
+            out.writeBytes(bytes);
+        }
+
+        String readString() throws IOException {
+
+            int length = readVarInt();
+            if(length < 0 || length > mEnd - mBuffer.position()) { throw new IOException("Truncated flow"); }
+
+            String value;
+            if(mBuffer.hasArray()) {
+                value = new String(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(), length, UTF_8);
+                mBuffer.position(mBuffer.position() + length);
+            }
+            else {
+                byte[] bytes = new byte[length];
+                mBuffer.get(bytes);
+                value = new String(bytes, UTF_8);
+            }
+            return value;
+        }
+    }
+}
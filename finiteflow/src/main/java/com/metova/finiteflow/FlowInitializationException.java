@@ -7,4 +7,12 @@ public class FlowInitializationException extends Exception {
     public String getMessage() {
         return "The FiniteFlow instance was not initialized properly!";
     }
+
+    /**
+     * Without a stack trace if configured (see {@link FiniteFlow#setStacklessExceptions(boolean)})
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return FiniteFlow.isStacklessExceptions() ? this : super.fillInStackTrace();
+    }
 }
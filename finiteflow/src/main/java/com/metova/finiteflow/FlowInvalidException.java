@@ -16,4 +16,12 @@ public class FlowInvalidException extends Exception {
     public FlowInvalidException(Throwable throwable) {
         super(throwable);
     }
+
+    /**
+     * Without a stack trace if configured (see {@link FiniteFlow#setStacklessExceptions(boolean)})
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return FiniteFlow.isStacklessExceptions() ? this : super.fillInStackTrace();
+    }
 }
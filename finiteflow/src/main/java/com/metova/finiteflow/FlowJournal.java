@@ -0,0 +1,512 @@
+package com.metova.finiteflow;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Journaled persistence of a flow: a snapshot of the flow plus an append-only journal of the state changes made since, so
+ * persisting a state change costs one fixed-size record whatever the size of the history
+ *
+ * Records are buffered and written / synced to disk in batches (at most {@link #SYNC_DELAY_MILLIS} after a change); once the
+ * journal has {@link #COMPACT_RECORDS} records it is folded into a new snapshot in the background. A flow is recovered by reading
+ * the snapshot and replaying the journal records after it.
+ *
+ * Snapshot file: magic (int), journal epoch (long), number of records of that journal it includes (int), flow ({@link FlowFormat})
+ * Journal file: magic (int), epoch (long), records: transition / state id (int), {@link StateChangeListener} change (short), check (short)
+ *
+ * The epoch increases every time the journal is rewritten, so after a crash at any point the journal either continues the snapshot
+ * (same epoch: replay the records it does not include, next epoch: replay all records) or is older than it (ignored)
+ * Lock-free flows (see {@link FiniteFlow#setConcurrent(boolean)}) report their changes unordered, so they are snapshotted instead
+ */
+final class FlowJournal implements StateChangeListener {
+
+    private static final String TAG = FlowJournal.class.getSimpleName();
+    private static final String SNAPSHOT_SUFFIX = "_snapshot";
+    private static final String JOURNAL_SUFFIX = "_journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * "FFSN" / "FFJL"
+     */
+    private static final int SNAPSHOT_MAGIC = 0x4646534E;
+    private static final int JOURNAL_MAGIC = 0x46464A4C;
+    private static final int SNAPSHOT_HEADER_SIZE = 16;
+    private static final int JOURNAL_HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 8;
+
+    /**
+     * Records buffered in memory before they are written to the journal
+     */
+    private static final int BUFFER_RECORDS = 512;
+
+    /**
+     * Buffered records are written and synced at most this long after being appended (changes made since can be lost in a crash)
+     */
+    static final long SYNC_DELAY_MILLIS = 100;
+
+    /**
+     * Number of journal records after which it is compacted into a new snapshot
+     */
+    static final int COMPACT_RECORDS = 4096;
+
+    private final Context mContext;
+    private final FiniteFlow mFlow;
+    private final String mIdentifier;
+
+    // Guarded by this (taken after the flow's lock when both are needed)
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+    private RandomAccessFile mJournalFile;
+    private FileChannel mJournalChannel;
+    private long mEpoch;
+
+    /**
+     * Records in the journal, including the buffered ones
+     */
+    private int mRecordCount;
+    private boolean mSyncScheduled;
+    private boolean mCompactionScheduled;
+
+    /**
+     * A write failed, so the journal file may be missing records until the next compaction
+     */
+    private boolean mFailed;
+    private boolean mClosed;
+
+    private final Runnable mSyncTask = new Runnable() {
+        @Override
+        public void run() {
+
+            try {
+                sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception syncing the journal of " + mIdentifier, e);
+            }
+        }
+    };
+
+    private final Runnable mCompactTask = new Runnable() {
+        @Override
+        public void run() {
+
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception compacting the journal of " + mIdentifier, e);
+            }
+        }
+    };
+
+    private FlowJournal(Context context, FiniteFlow flow) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mFlow = flow;
+        mIdentifier = flow.getIdentifier();
+    }
+
+    /**
+     * Snapshot the flow and journal its state changes from now on (replacing anything persisted for it before)
+     * @return The flow's journal (the existing one if it is already journaled)
+     * @throws IllegalStateException If the flow is persisted with write-behind
+     */
+    static FlowJournal open(Context context, FiniteFlow flow) throws IOException {
+
+        synchronized (flow) {
+
+            StateChangeListener listener = flow.getStateChangeListener();
+            if(listener instanceof FlowJournal && ((FlowJournal) listener).isOpen()) { return (FlowJournal) listener; }
+            if(listener != null) { throw new IllegalStateException("The flow is already persisted with write-behind"); }
+
+            FlowJournal journal = new FlowJournal(context, flow);
+            synchronized (journal) {
+
+                // Any journal left over has an epoch of at most the snapshot's + 1, so it can't be taken for this one
+                journal.mEpoch = readSnapshotEpoch(journal.getFile(SNAPSHOT_SUFFIX)) + 2;
+                journal.writeSnapshot(FlowFormat.encode(flow), journal.mEpoch, 0);
+                journal.rewriteJournal(journal.mEpoch, ByteBuffer.allocate(0));
+            }
+            flow.setStateChangeListener(journal);
+            return journal;
+        }
+    }
+
+    /**
+     * Read a journaled flow: its snapshot plus the journal records made after it
+     * @return The flow, null if none was journaled
+     */
+    static FiniteFlow recover(Context context, String identifier) throws IOException {
+
+        ByteBuffer snapshot = readFile(context.getFileStreamPath(identifier + SNAPSHOT_SUFFIX));
+        if(snapshot == null) { return null; }
+        if(snapshot.remaining() < SNAPSHOT_HEADER_SIZE || snapshot.getInt(0) != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a flow snapshot");
+        }
+
+        long epoch = snapshot.getLong(4);
+        int included = snapshot.getInt(12);
+        snapshot.position(SNAPSHOT_HEADER_SIZE);
+        FiniteFlow flow = FlowFormat.decode(snapshot);
+
+        ByteBuffer journal = readFile(context.getFileStreamPath(identifier + JOURNAL_SUFFIX));
+        if(journal == null || journal.remaining() < JOURNAL_HEADER_SIZE || journal.getInt(0) != JOURNAL_MAGIC) {
+            Log.w(TAG, "No journal for " + identifier + ", using its snapshot");
+            return flow;
+        }
+
+        long journalEpoch = journal.getLong(4);
+        int start;
+        if(journalEpoch == epoch) {
+            start = included;
+        }
+        else if(journalEpoch == epoch + 1) {
+            start = 0;
+        }
+        else {
+            return flow;
+        }
+
+        // A record torn by a crash is ignored
+        int records = (journal.limit() - JOURNAL_HEADER_SIZE) / RECORD_SIZE;
+        for(int i = start; i < records; i++) {
+
+            int offset = JOURNAL_HEADER_SIZE + i * RECORD_SIZE;
+            int id = journal.getInt(offset);
+            short change = journal.getShort(offset + 4);
+            if(journal.getShort(offset + 6) != check(id, change) || !flow.replayStateChange(change, id)) {
+                Log.w(TAG, "Invalid record " + i + " in the journal of " + identifier + ", ignoring the rest");
+                break;
+            }
+        }
+        return flow;
+    }
+
+    /**
+     * Stop journaling the flow (if it is) and delete its snapshot / journal
+     * @return If a snapshot was deleted
+     */
+    static boolean delete(Context context, String identifier) {
+
+        FiniteFlow flow = FiniteFlow.getFiniteFlowInstances() != null ? FiniteFlow.getFiniteFlowInstances().get(identifier) : null;
+        if(flow != null && flow.getStateChangeListener() instanceof FlowJournal) {
+            ((FlowJournal) flow.getStateChangeListener()).close();
+        }
+
+        context.deleteFile(identifier + JOURNAL_SUFFIX);
+        return context.deleteFile(identifier + SNAPSHOT_SUFFIX);
+    }
+
+    synchronized boolean isOpen() {
+        return !mClosed;
+    }
+
+    /**
+     * Write the buffered records and sync the journal to disk
+     */
+    void sync() throws IOException {
+
+        FileChannel channel;
+        synchronized (this) {
+
+            mSyncScheduled = false;
+            if(mClosed) { return; }
+
+            flushBuffer();
+            channel = mJournalChannel;
+        }
+
+        // Without holding the lock, so appending does not wait for the disk
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            // Closed by a compaction meanwhile, which synced the rewritten journal
+            if(channel.isOpen()) { throw e; }
+        }
+    }
+
+    /**
+     * Sync and stop journaling the flow, its files are kept
+     */
+    void close() {
+
+        synchronized (mFlow) {
+            if(mFlow.getStateChangeListener() == this) { mFlow.setStateChangeListener(null); }
+        }
+
+        synchronized (this) {
+
+            if(mClosed) { return; }
+
+            try {
+                flushBuffer();
+                mJournalChannel.force(false);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception closing the journal of " + mIdentifier, e);
+            }
+            closeJournal();
+            mClosed = true;
+        }
+    }
+
+    @Override
+    public void onStateChanged(FiniteFlow flow, int change, int id) {
+
+        if(change == CHANGE_SETUP) {
+
+            // Ids in the journal would no longer match the snapshot (holding the flow's lock, so this is the last change)
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception compacting the journal of " + mIdentifier, e);
+            }
+        }
+        else if(flow.isConcurrent()) {
+            scheduleCompaction();
+        }
+        else {
+            append(change, id);
+        }
+    }
+
+    private synchronized void append(int change, int id) {
+
+        if(mClosed) { return; }
+
+        // Records after a failed write would leave a gap in the journal, the compaction snapshots them instead
+        if(mFailed) {
+            scheduleCompaction();
+            return;
+        }
+
+        mBuffer.putInt(id).putShort((short) change).putShort(check(id, change));
+        mRecordCount++;
+
+        if(!mBuffer.hasRemaining()) {
+            try {
+                flushBuffer();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception writing the journal of " + mIdentifier, e);
+            }
+        }
+
+        if(!mSyncScheduled) {
+
+            mSyncScheduled = true;
+            PersistenceExecutor.EXECUTOR.schedule(mSyncTask, SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        if(mRecordCount >= COMPACT_RECORDS) {
+            scheduleCompaction();
+        }
+    }
+
+    private synchronized void scheduleCompaction() {
+
+        if(mClosed || mCompactionScheduled) { return; }
+
+        mCompactionScheduled = true;
+        PersistenceExecutor.EXECUTOR.execute(mCompactTask);
+    }
+
+    /**
+     * Fold the journal into a new snapshot: the flow is only locked while it is encoded, records appended while the snapshot is
+     * written are moved over to the new journal
+     */
+    private void compact() throws IOException {
+
+        synchronized (this) {
+            mCompactionScheduled = false;
+            if(mClosed) { return; }
+        }
+
+        ByteBuffer snapshot;
+        long epoch;
+        int included;
+        boolean failed;
+        synchronized (mFlow) {
+
+            synchronized (this) {
+                epoch = mEpoch;
+                included = mRecordCount;
+                failed = mFailed;
+            }
+            snapshot = FlowFormat.encode(mFlow);
+
+            // After a failed write the journal can't be trusted, so nothing may be appended until it is rewritten
+            if(failed) {
+                compactJournal(snapshot, epoch, included, true);
+                return;
+            }
+        }
+        compactJournal(snapshot, epoch, included, false);
+    }
+
+    /**
+     * Write the snapshot, then rewrite the journal with the records made after it
+     * @param locked If the flow is locked since the snapshot was encoded (no records were made after it)
+     */
+    private void compactJournal(ByteBuffer snapshot, long epoch, int included, boolean locked) throws IOException {
+
+        writeSnapshot(snapshot, epoch, included);
+
+        synchronized (this) {
+
+            if(mClosed) { return; }
+
+            ByteBuffer records;
+            if(locked) {
+                records = ByteBuffer.allocate(0);
+                mBuffer.clear();
+            }
+            else if(mFailed) {
+                // A write failed meanwhile, the records after the snapshot can't be read back
+                scheduleCompaction();
+                return;
+            }
+            else {
+
+                flushBuffer();
+                records = ByteBuffer.allocate((mRecordCount - included) * RECORD_SIZE);
+                long position = JOURNAL_HEADER_SIZE + (long) included * RECORD_SIZE;
+                while(records.hasRemaining() && mJournalChannel.read(records, position + records.position()) >= 0) {
+                    // Read until full / end of file
+                }
+                records.flip();
+            }
+
+            rewriteJournal(epoch + 1, records);
+            mEpoch = epoch + 1;
+            mRecordCount -= included;
+            mFailed = false;
+        }
+    }
+
+    /**
+     * Write the buffered records to the journal, holding the lock
+     * Nothing is written after a failed write until the compaction rewrites the journal
+     */
+    private void flushBuffer() throws IOException {
+
+        if(mBuffer.position() == 0 || mFailed) {
+            mBuffer.clear();
+            return;
+        }
+
+        mBuffer.flip();
+        try {
+            while(mBuffer.hasRemaining()) {
+                mJournalChannel.write(mBuffer);
+            }
+        } catch (IOException e) {
+            mFailed = true;
+            scheduleCompaction();
+            throw e;
+        } finally {
+            mBuffer.clear();
+        }
+    }
+
+    /**
+     * Replace the journal with one of the epoch containing the records, holding the lock
+     */
+    private void rewriteJournal(long epoch, ByteBuffer records) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+        header.putInt(JOURNAL_MAGIC).putLong(epoch).flip();
+        writeFile(getFile(JOURNAL_SUFFIX), header, records);
+
+        closeJournal();
+        mJournalFile = new RandomAccessFile(getFile(JOURNAL_SUFFIX), "rw");
+        mJournalChannel = mJournalFile.getChannel();
+        mJournalChannel.position(mJournalChannel.size());
+    }
+
+    private void writeSnapshot(ByteBuffer snapshot, long epoch, int included) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+        header.putInt(SNAPSHOT_MAGIC).putLong(epoch).putInt(included).flip();
+        writeFile(getFile(SNAPSHOT_SUFFIX), header, snapshot);
+    }
+
+    private void closeJournal() {
+
+        if(mJournalFile == null) { return; }
+
+        try {
+            mJournalFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception closing the journal of " + mIdentifier, e);
+        }
+        mJournalFile = null;
+        mJournalChannel = null;
+    }
+
+    private File getFile(String suffix) {
+        return mContext.getFileStreamPath(mIdentifier + suffix);
+    }
+
+    private static short check(int id, int change) {
+        return (short) (id ^ (id >>> 16) ^ (change << 8) ^ 0x5A5A);
+    }
+
+    /**
+     * Replace the file atomically (written to a temporary file, synced then renamed)
+     */
+    private static void writeFile(File file, ByteBuffer header, ByteBuffer content) throws IOException {
+
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            while(header.hasRemaining()) {
+                channel.write(header);
+            }
+            while(content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+
+        if(!temp.renameTo(file)) { throw new IOException("Could not replace " + file); }
+    }
+
+    /**
+     * @return The file's content, null if it does not exist
+     */
+    private static ByteBuffer readFile(File file) throws IOException {
+
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            return FileStorageBackend.read(fis.getChannel());
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static long readSnapshotEpoch(File file) throws IOException {
+
+        if(!file.exists()) { return 0; }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.length() >= SNAPSHOT_HEADER_SIZE && in.readInt() == SNAPSHOT_MAGIC ? in.readLong() : 0;
+        } finally {
+            in.close();
+        }
+    }
+}
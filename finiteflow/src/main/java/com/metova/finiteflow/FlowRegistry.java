@@ -0,0 +1,551 @@
+package com.metova.finiteflow;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Identifier to FiniteFlow mapping behind {@link FiniteFlow#getInstance(String)}
+ * Lookups do not lock and each identifier's instance is created at most once, even when first requested from several threads
+ * The registry can be bounded (see {@link FiniteFlow#setInstanceLimits(Context, int, long)}), in which case the least recently
+ * requested / idle instances are passivated to disk (on the persistence thread) and read back (reactivated) the next time they are requested
+ * All instances can be persisted into a single {@link FlowContainer}, from which they are read back one by one when first requested
+ */
+final class FlowRegistry {
+
+    private static final String TAG = FlowRegistry.class.getSimpleName();
+
+    /**
+     * Share of the instances kept when trimming to the maximum, so that the registry is not trimmed on every new instance
+     */
+    private static final int TRIM_NUMERATOR = 3, TRIM_DENOMINATOR = 4;
+
+    private static final Comparator<Candidate> LEAST_RECENTLY_USED = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            return lhs.mAccessTime < rhs.mAccessTime ? -1 : (lhs.mAccessTime == rhs.mAccessTime ? 0 : 1);
+        }
+    };
+
+    private final ConcurrentHashMap<String, FiniteFlow> mInstances = new ConcurrentHashMap<>();
+    private final Map<String, FiniteFlow> mInstancesView = Collections.unmodifiableMap(mInstances);
+
+    /**
+     * Setup of each passivated flow that is not stored with it (see {@link PassivatedFlow})
+     */
+    private final Map<String, PassivatedFlow> mPassivatedFlows = new ConcurrentHashMap<>();
+
+    /**
+     * Identifiers being passivated, released once the instance is either passivated or kept (requests for them wait)
+     */
+    private final Map<String, CountDownLatch> mPassivating = new ConcurrentHashMap<>();
+
+    /**
+     * Guards creating / reactivating instances against passivation when the registry is bounded
+     * Instance locks are never taken while holding it (a guard / event holding its flow's lock may request another instance)
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * Context used for persistence, null if the registry is not bounded
+     */
+    private volatile Context mContext;
+
+    /**
+     * Last context used for persistence, kept to reactivate instances after the registry is no longer bounded
+     */
+    private volatile Context mPassivationContext;
+    private volatile int mMaxInstances;
+    private volatile long mIdleTimeoutNanos;
+    private volatile long mLastTrimNanos;
+
+    /**
+     * Instances requested at or after this time are kept by the pending trim (they are being returned to their caller)
+     */
+    private volatile long mTrimRequestNanos;
+    private final AtomicBoolean mTrimScheduled = new AtomicBoolean();
+
+    private final Runnable mTrimTask = new Runnable() {
+        @Override
+        public void run() {
+            mTrimScheduled.set(false);
+            trim(mTrimRequestNanos);
+        }
+    };
+
+    /**
+     * Restored instances that were not requested yet, null if there are none
+     */
+    private volatile FlowContainer mContainer;
+
+    /**
+     * @return The instance mapped to the identifier, created (or reactivated) if it is not in memory
+     */
+    FiniteFlow getOrCreate(String identifier) {
+
+        FiniteFlow instance = mInstances.get(identifier);
+        if(mContext == null && mPassivatedFlows.isEmpty() && mPassivating.isEmpty() && mContainer == null) {
+
+            if(instance == null) {
+
+                // Only one thread's instance is kept if several create it at the same time
+                FiniteFlow created = new FiniteFlow(identifier);
+                instance = mInstances.putIfAbsent(identifier, created);
+                if(instance == null) {
+                    instance = created;
+                }
+            }
+            return instance;
+        }
+
+        long now = System.nanoTime();
+        if(instance != null) {
+
+            // Passivation unmaps an instance before checking its access time, so either it sees this request and keeps the
+            // instance, or the instance is no longer mapped and is reactivated below (with the changes made before it was passivated)
+            instance.setLastAccessTime(now);
+            if(mInstances.get(identifier) != instance) {
+                instance = null;
+            }
+        }
+
+        boolean added = false;
+        while(instance == null) {
+
+            CountDownLatch passivating;
+            synchronized (mLock) {
+
+                instance = mInstances.get(identifier);
+                passivating = instance == null ? mPassivating.get(identifier) : null;
+                if(instance == null && passivating == null) {
+
+                    instance = reactivate(identifier);
+                    if(instance == null) {
+                        instance = load(identifier);
+                    }
+                    if(instance == null) {
+                        instance = new FiniteFlow(identifier);
+                    }
+                    mInstances.put(identifier, instance);
+                    added = true;
+                }
+                if(instance != null) {
+                    instance.setLastAccessTime(now);
+                }
+            }
+
+            // Being passivated: once it is done, the instance is either mapped again or can be reactivated
+            if(passivating != null) {
+                awaitUninterruptibly(passivating);
+            }
+        }
+
+        int maxInstances = mMaxInstances;
+        scheduleTrim(now, added && maxInstances > 0 && mInstances.size() > maxInstances);
+        return instance;
+    }
+
+    void remove(String identifier) {
+
+        mInstances.remove(identifier);
+        forget(identifier);
+
+        FlowContainer container = mContainer;
+        if(container != null) {
+            container.remove(identifier);
+        }
+    }
+
+    void clear() {
+
+        mContainer = null;
+        mInstances.clear();
+        for(String identifier : new ArrayList<>(mPassivatedFlows.keySet())) {
+            forget(identifier);
+        }
+    }
+
+    /**
+     * @return Read-only, live view of the instances in memory
+     */
+    Map<String, FiniteFlow> getInstances() {
+        return mInstancesView;
+    }
+
+
+    // region Container
+    /**
+     * Persist all instances (in memory, passivated and restored but not requested yet) into the container, in one write
+     * Only the identifiers are collected holding mLock, passivated flows are copied as they were written (already encoded)
+     */
+    void persistAll(Context context) throws IOException {
+
+        Map<String, ByteBuffer> flows = new LinkedHashMap<>();
+        List<String> passivated;
+        List<FiniteFlow> instances;
+        Context passivationContext;
+        while(true) {
+
+            CountDownLatch passivating = null;
+            synchronized (mLock) {
+
+                // Passivations in progress are waited for, their instance is neither in memory nor passivated
+                if(mPassivating.isEmpty()) {
+
+                    FlowContainer container = mContainer;
+                    if(container != null) {
+                        flows.putAll(container.getFlows());
+                    }
+                    passivated = new ArrayList<>(mPassivatedFlows.keySet());
+                    instances = new ArrayList<>(mInstances.values());
+                    passivationContext = mPassivationContext;
+                    break;
+                }
+                passivating = mPassivating.values().iterator().next();
+            }
+            awaitUninterruptibly(passivating);
+        }
+
+        if(!passivated.isEmpty()) {
+
+            StorageBackend backend = new FileStorageBackend(passivationContext);
+            for(String identifier : passivated) {
+
+                ByteBuffer flow = PersistenceUtil.readEncodedFlow(backend, identifier);
+
+                // Reactivated meanwhile (its file is deleted once read)
+                FiniteFlow instance = flow == null ? mInstances.get(identifier) : null;
+                if(instance != null) {
+                    flow = FlowFormat.encode(instance);
+                }
+                if(flow != null) {
+                    flows.put(identifier, flow);
+                }
+            }
+        }
+
+        for(FiniteFlow instance : instances) {
+            flows.put(instance.getIdentifier(), FlowFormat.encode(instance));
+        }
+
+        FlowContainer.write(context, FlowContainer.DEFAULT_NAME, flows);
+    }
+
+    /**
+     * Read the container's index, its instances are read when requested (instances in memory are kept over them)
+     * @return If the container holds any instance
+     */
+    boolean restoreAll(Context context) throws IOException {
+
+        FlowContainer container = FlowContainer.open(context, FlowContainer.DEFAULT_NAME);
+        if(container != null && container.isEmpty()) {
+            container = null;
+        }
+
+        synchronized (mLock) {
+            mContainer = container;
+        }
+        return container != null;
+    }
+
+    /**
+     * Must be called holding mLock
+     * @return The restored instance, null if the identifier is not in the container or could not be read
+     */
+    private FiniteFlow load(String identifier) {
+
+        FlowContainer container = mContainer;
+        if(container == null) { return null; }
+
+        FiniteFlow instance = null;
+        try {
+            instance = container.take(identifier);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to load flow " + identifier, e);
+        }
+
+        // Back to lock-free lookups once every instance is loaded
+        if(container.isEmpty()) {
+            mContainer = null;
+        }
+        return instance;
+    }
+    // endregion
+
+
+    // region Limits
+    /**
+     * @param context Context used to passivate instances, null to no longer bound the registry
+     * @param maxInstances Maximum instances kept in memory, 0 for no maximum
+     * @param idleTimeoutMillis Time after which an instance that has not been requested is passivated, 0 for no timeout
+     */
+    void setLimits(Context context, int maxInstances, long idleTimeoutMillis) {
+
+        synchronized (mLock) {
+            mContext = context != null ? context.getApplicationContext() : null;
+            if(mContext != null) {
+                mPassivationContext = mContext;
+            }
+            mMaxInstances = maxInstances;
+            mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        }
+        scheduleTrim(System.nanoTime(), true);
+    }
+
+    /**
+     * Trim on the persistence thread (once for all the requests made until it runs), so that requests neither sort the
+     * instances nor wait for the disk
+     * @param force Trim even if the last trim happened less than half the idle timeout ago
+     */
+    private void scheduleTrim(long now, boolean force) {
+
+        long idleTimeout = mIdleTimeoutNanos;
+        if(mContext == null || (!force && (idleTimeout == 0 || now - mLastTrimNanos < idleTimeout / 2))) { return; }
+
+        mLastTrimNanos = now;
+        mTrimRequestNanos = now;
+        if(mTrimScheduled.compareAndSet(false, true)) {
+            PersistenceExecutor.EXECUTOR.execute(mTrimTask);
+        }
+    }
+
+    /**
+     * Passivate the idle instances, and the least recently requested ones if there are more than the maximum
+     * @param requestNanos Instances requested at or after this time are being returned to their caller, and are never passivated
+     */
+    private void trim(long requestNanos) {
+
+        if(mContext == null) { return; }
+
+        long now = System.nanoTime(), idleTimeout = mIdleTimeoutNanos;
+
+        // Flows with registered listeners are in use (and their listeners cannot be passivated), so they are kept
+        // Journaled / write-behind flows are kept as well, their changes keep being written
+        List<Candidate> candidates = new ArrayList<>();
+        for(FiniteFlow instance : mInstances.values()) {
+
+            long accessTime = instance.getLastAccessTime();
+            if(accessTime - requestNanos < 0 && !instance.hasRegisteredListeners() && instance.getStateChangeListener() == null) {
+                candidates.add(new Candidate(instance, accessTime));
+            }
+        }
+        Collections.sort(candidates, LEAST_RECENTLY_USED);
+
+        int maxInstances = mMaxInstances;
+        int excess = maxInstances > 0 && mInstances.size() > maxInstances
+                ? mInstances.size() - maxInstances * TRIM_NUMERATOR / TRIM_DENOMINATOR
+                : 0;
+
+        for(Candidate candidate : candidates) {
+
+            boolean idle = idleTimeout > 0 && now - candidate.mAccessTime > idleTimeout;
+            if(excess <= 0 && !idle) { break; }
+
+            if(passivate(candidate.mInstance, candidate.mAccessTime)) {
+                excess--;
+            }
+        }
+    }
+    // endregion
+
+
+    // region Passivation
+    /**
+     * Persist then unmap the instance, holding its lock so that no transition is made and no listener / journal is attached in
+     * between. The identifier is reserved first (under mLock), so that a request for it waits until the instance is either
+     * passivated or kept, then the instance lock is taken without holding mLock.
+     * @param accessTime Access time of the instance when it was picked, it is kept if it was requested since
+     * @return If the instance was passivated
+     */
+    private boolean passivate(FiniteFlow instance, long accessTime) {
+
+        String identifier = instance.getIdentifier();
+        Context context;
+        CountDownLatch passivating = new CountDownLatch(1);
+        synchronized (mLock) {
+
+            context = mContext;
+            if(context == null || mPassivatedFlows.containsKey(identifier) || mPassivating.containsKey(identifier)) { return false; }
+            mPassivating.put(identifier, passivating);
+        }
+
+        PassivatedFlow passivatedFlow = null;
+        try {
+            synchronized (instance) {
+
+                // Listeners / journals may have been attached since it was picked
+                if(instance.hasRegisteredListeners() || instance.getStateChangeListener() != null) { return false; }
+
+                // Unmapped before checking the access time, see getOrCreate
+                if(!mInstances.remove(identifier, instance)) { return false; }
+                if(instance.getLastAccessTime() != accessTime) {
+                    mInstances.put(identifier, instance);
+                    return false;
+                }
+
+                if(!PersistenceUtil.persistFlow(context, PersistenceUtil.PERSIST_TYPE.TYPE_DISK, instance)) {
+                    Log.w(TAG, "Unable to passivate flow " + identifier + ", keeping it in memory");
+                    mInstances.put(identifier, instance);
+                    return false;
+                }
+
+                passivatedFlow = new PassivatedFlow(instance);
+                return true;
+            }
+        }
+        finally {
+
+            synchronized (mLock) {
+                if(passivatedFlow != null) {
+                    mPassivatedFlows.put(identifier, passivatedFlow);
+                }
+                mPassivating.remove(identifier);
+            }
+            passivating.countDown();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+
+        boolean interrupted = false;
+        while(true) {
+            try {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Instance that can be passivated, with its access time when the trim started (read once, so that the order is stable while sorting)
+     */
+    private static final class Candidate {
+
+        final FiniteFlow mInstance;
+        final long mAccessTime;
+
+        Candidate(FiniteFlow instance, long accessTime) {
+            mInstance = instance;
+            mAccessTime = accessTime;
+        }
+    }
+
+    /**
+     * Must be called holding mLock
+     * @return The passivated instance, null if the identifier was not passivated or could not be read
+     */
+    private FiniteFlow reactivate(String identifier) {
+
+        PassivatedFlow passivatedFlow = mPassivatedFlows.remove(identifier);
+        if(passivatedFlow == null) { return null; }
+
+        Context context = mPassivationContext;
+        FiniteFlow instance = context != null ? PersistenceUtil.readFlow(context, PersistenceUtil.PERSIST_TYPE.TYPE_DISK, identifier) : null;
+        if(instance == null) {
+            Log.e(TAG, "Unable to reactivate flow " + identifier);
+            return null;
+        }
+
+        passivatedFlow.restore(instance);
+        PersistenceUtil.deleteFlow(context, PersistenceUtil.PERSIST_TYPE.TYPE_DISK, identifier);
+        return instance;
+    }
+
+    private void forget(String identifier) {
+
+        Context context = mPassivationContext;
+        if(mPassivatedFlows.remove(identifier) != null && context != null) {
+            PersistenceUtil.deleteFlow(context, PersistenceUtil.PERSIST_TYPE.TYPE_DISK, identifier);
+        }
+    }
+
+    /**
+     * Setup that is not persisted with a flow (its shared definition, event classes, guards and options), kept in memory while it is passivated
+     */
+    private static final class PassivatedFlow {
+
+        private final FlowDefinition mDefinition;
+        private final Class[] mEventClasses;
+        private final boolean mWeakListeners;
+        private final boolean mEventFanOut;
+        private final Executor mEventExecutor;
+        private final long mEventCoalescingWindow;
+        private final OnStatesSkippedListener mStatesSkippedListener;
+        private final boolean mConcurrent;
+        private final int mHistoryCapacity;
+        private final boolean mCollapseSelfLoops;
+        private final boolean mCollapseCycles;
+        private final Map<Transition, List<TransitionGuard>> mTransitionGuards;
+
+        PassivatedFlow(FiniteFlow flow) {
+            mDefinition = flow.getDefinition();
+            mEventClasses = flow.getEventClasses();
+            mWeakListeners = flow.isWeakListeners();
+            mEventFanOut = flow.isEventFanOut();
+            mEventExecutor = flow.getEventExecutor();
+            mEventCoalescingWindow = flow.getEventCoalescingWindow();
+            mStatesSkippedListener = flow.getStatesSkippedListener();
+            mConcurrent = flow.isConcurrent();
+            mHistoryCapacity = flow.getHistoryCapacity();
+            mCollapseSelfLoops = flow.isCollapseSelfLoops();
+            mCollapseCycles = flow.isCollapseCycles();
+            mTransitionGuards = flow.getTransitionGuards();
+        }
+
+        void restore(FiniteFlow flow) {
+
+            if(mDefinition != null) {
+                flow.restoreDefinition(mDefinition);
+            }
+            flow.setWeakListeners(mWeakListeners)
+                    .setEventFanOut(mEventFanOut)
+                    .setEventExecutor(mEventExecutor)
+                    .setEventCoalescing(mEventCoalescingWindow, mStatesSkippedListener)
+                    .setHistoryCapacity(mHistoryCapacity)
+                    .setCollapseSelfLoops(mCollapseSelfLoops)
+                    .setCollapseCycles(mCollapseCycles);
+
+            if(mEventClasses != null) {
+                try {
+                    flow.setEventClasses(mEventClasses);
+                }
+                catch (FlowInitializationException e) {
+                    Log.e(TAG, "Exception restoring the event classes of flow " + flow.getIdentifier(), e);
+                }
+            }
+            if(mTransitionGuards != null) {
+                for(Map.Entry<Transition, List<TransitionGuard>> entry : mTransitionGuards.entrySet()) {
+                    for(TransitionGuard guard : entry.getValue()) {
+                        try {
+                            flow.addGuard(entry.getKey().getFromState(), entry.getKey().getToState(), guard);
+                        }
+                        catch (FlowInitializationException e) {
+                            Log.e(TAG, "Exception restoring the guards of flow " + flow.getIdentifier(), e);
+                        }
+                    }
+                }
+            }
+            flow.setConcurrent(mConcurrent);
+        }
+    }
+    // endregion
+}
@@ -0,0 +1,38 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+/**
+ * Calls an event method through the generated {@link EventDispatcher} of its class
+ * Exceptions thrown by the method are logged, as with {@link ReflectiveEventHandler}
+ */
+final class GeneratedEventHandler implements EventHandler {
+
+    private static final String TAG = GeneratedEventHandler.class.getSimpleName();
+
+    private final EventDispatcher mDispatcher;
+    private final int mIndex;
+    private final boolean mOnEnter;
+
+    GeneratedEventHandler(EventDispatcher dispatcher, int index, boolean onEnter) {
+        mDispatcher = dispatcher;
+        mIndex = index;
+        mOnEnter = onEnter;
+    }
+
+    @Override
+    public void call(Object instance) {
+
+        try {
+            if(mOnEnter) {
+                mDispatcher.onEnter(instance, mIndex);
+            }
+            else {
+                mDispatcher.onExit(instance, mIndex);
+            }
+        }
+        catch (RuntimeException e) {
+            Log.e(TAG, "Exception in event method of " + instance.getClass().getName(), e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.metova.finiteflow;
+
+/**
+ * Implemented by the classes generated for {@link Flow} annotated types (named {@code <Type>$$Flow})
+ * The definition has been validated at compile time, so it can be loaded without reading annotations / re-validating
+ */
+public interface GeneratedFlow {
+
+    /**
+     * @return All states, in declaration order and without duplicates
+     */
+    String[] getStates();
+
+    /**
+     * @return The starting state (always one of {@link #getStates()})
+     */
+    String getInitialState();
+
+    /**
+     * @return Pairs of from / to states ({@code [from0, to0, from1, to1, ...]}), in declaration order and without duplicates
+     */
+    String[] getTransitions();
+}
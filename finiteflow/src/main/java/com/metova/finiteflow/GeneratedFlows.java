@@ -0,0 +1,68 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Looks up (and caches) the {@link GeneratedFlow} generated for a {@link Flow} annotated class
+ */
+final class GeneratedFlows {
+
+    private static final String TAG = GeneratedFlows.class.getSimpleName();
+
+    static final String SUFFIX = "$$Flow";
+
+    /**
+     * Marker for classes that have no generated definition (so we only try to load once per class)
+     */
+    private static final GeneratedFlow NONE = new GeneratedFlow() {
+        @Override
+        public String[] getStates() { return null; }
+
+        @Override
+        public String getInitialState() { return null; }
+
+        @Override
+        public String[] getTransitions() { return null; }
+    };
+
+    private static final Map<Class<?>, GeneratedFlow> sGeneratedFlows = new ConcurrentHashMap<>();
+
+    private GeneratedFlows() {}
+
+    /**
+     * @return The generated definition for the class or null if the annotation processor did not run for it
+     */
+    static GeneratedFlow find(Class<?> cls) {
+
+        GeneratedFlow generatedFlow = sGeneratedFlows.get(cls);
+        if(generatedFlow == null) {
+
+            generatedFlow = load(cls);
+            sGeneratedFlows.put(cls, generatedFlow);
+        }
+
+        return generatedFlow != NONE ? generatedFlow : null;
+    }
+
+    private static GeneratedFlow load(Class<?> cls) {
+
+        try {
+            Class<?> generated = Class.forName(cls.getName() + SUFFIX, true, cls.getClassLoader());
+            return (GeneratedFlow) generated.newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            return NONE;
+        }
+        catch (InstantiationException e) {
+            Log.e(TAG, "Exception loading generated flow for " + cls.getName(), e);
+        }
+        catch (IllegalAccessException e) {
+            Log.e(TAG, "Exception loading generated flow for " + cls.getName(), e);
+        }
+
+        return NONE;
+    }
+}
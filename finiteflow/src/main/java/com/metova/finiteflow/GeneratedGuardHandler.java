@@ -0,0 +1,32 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+/**
+ * Calls a guard method through the generated {@link EventDispatcher} of its class
+ * An exception thrown by the method is logged and refuses the transition, as with {@link ReflectiveGuardHandler}
+ */
+final class GeneratedGuardHandler implements GuardHandler {
+
+    private static final String TAG = GeneratedGuardHandler.class.getSimpleName();
+
+    private final EventDispatcher mDispatcher;
+    private final int mIndex;
+
+    GeneratedGuardHandler(EventDispatcher dispatcher, int index) {
+        mDispatcher = dispatcher;
+        mIndex = index;
+    }
+
+    @Override
+    public boolean check(Object instance) {
+
+        try {
+            return mDispatcher.guard(instance, mIndex);
+        }
+        catch (RuntimeException e) {
+            Log.e(TAG, "Exception in guard method of " + instance.getClass().getName(), e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.metova.finiteflow;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of an event class (see {@link FiniteFlow#setEventClasses(Class[])}) as a guard of the transition from / to:
+ * the transition is only taken if the method (taking no arguments and returning boolean) returns true
+ * (a method throwing an exception refuses the transition, the exception is logged)
+ * The guard methods of a class are called in the order of their names
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Guard {
+
+    String from();
+    String to();
+}
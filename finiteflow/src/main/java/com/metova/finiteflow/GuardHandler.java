@@ -0,0 +1,12 @@
+package com.metova.finiteflow;
+
+/**
+ * A single resolved {@link Guard} method
+ */
+interface GuardHandler {
+
+    /**
+     * Call the guard method on the given listener instance
+     */
+    boolean check(Object instance);
+}
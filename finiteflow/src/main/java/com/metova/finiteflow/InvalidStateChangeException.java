@@ -39,4 +39,12 @@ public class InvalidStateChangeException extends Exception {
             return "Transition not allowed: " + mTransition.toString() + " from current state: " + mCurrentState;
         }
     }
+
+    /**
+     * Without a stack trace if configured (see {@link FiniteFlow#setStacklessExceptions(boolean)})
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return FiniteFlow.isStacklessExceptions() ? this : super.fillInStackTrace();
+    }
 }
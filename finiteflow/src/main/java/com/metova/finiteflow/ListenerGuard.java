@@ -0,0 +1,53 @@
+package com.metova.finiteflow;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * A {@link Guard} method of an event class, bound to the instance registered for the class in one flow
+ * Without a registered instance the guard does not apply (the transition is allowed), as its events are not called either
+ */
+final class ListenerGuard implements TransitionGuard {
+
+    private final Class<?> mListenerClass;
+    private final ListenerInfo.GuardMethod mGuardMethod;
+
+    private volatile Object mInstance;
+    private volatile WeakReference<Object> mWeakInstance;
+
+    ListenerGuard(Class<?> listenerClass, ListenerInfo.GuardMethod guardMethod, Object instance) {
+        mListenerClass = listenerClass;
+        mGuardMethod = guardMethod;
+        mInstance = instance;
+    }
+
+    Class<?> getListenerClass() {
+        return mListenerClass;
+    }
+
+    String getFromState() {
+        return mGuardMethod.getFromState();
+    }
+
+    String getToState() {
+        return mGuardMethod.getToState();
+    }
+
+    Object getInstance() {
+
+        WeakReference<Object> weakInstance = mWeakInstance;
+        return weakInstance != null ? weakInstance.get() : mInstance;
+    }
+
+    void setInstance(Object instance, boolean weak) {
+
+        mInstance = weak ? null : instance;
+        mWeakInstance = weak && instance != null ? new WeakReference<>(instance) : null;
+    }
+
+    @Override
+    public boolean isAllowed(FiniteFlow flow) {
+
+        Object instance = getInstance();
+        return instance == null || mGuardMethod.getHandler().check(instance);
+    }
+}
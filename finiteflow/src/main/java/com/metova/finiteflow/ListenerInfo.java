@@ -0,0 +1,268 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Event metadata of a listener class ({@link OnEnter} / {@link OnExit} methods by state, {@link Guard} methods)
+ * Each class is scanned once per process and the result is shared by every FiniteFlow instance
+ */
+final class ListenerInfo {
+
+    private static final String TAG = ListenerInfo.class.getSimpleName();
+
+    private static final Map<Class<?>, ListenerInfo> sListenerInfo = new ConcurrentHashMap<>();
+
+    private static final Comparator<Method> METHOD_NAME_ORDER = new Comparator<Method>() {
+        @Override
+        public int compare(Method lhs, Method rhs) {
+            return lhs.getName().compareTo(rhs.getName());
+        }
+    };
+
+    private final Class<?> mListenerClass;
+
+    /**
+     * Events of each state the class has methods for, in declaration order
+     */
+    private final Map<String, StateEvents> mStateEvents;
+
+    /**
+     * Guard methods of the class, in the order of their names (the order of getDeclaredMethods() is unspecified, so the generated
+     * dispatcher uses the same order)
+     */
+    private final List<GuardMethod> mGuardMethods;
+
+    private ListenerInfo(Class<?> listenerClass, Map<String, StateEvents> stateEvents, List<GuardMethod> guardMethods) {
+        mListenerClass = listenerClass;
+        mStateEvents = Collections.unmodifiableMap(stateEvents);
+        mGuardMethods = Collections.unmodifiableList(guardMethods);
+    }
+
+    /**
+     * @return The (shared) event metadata of the class
+     */
+    static ListenerInfo get(Class<?> listenerClass) {
+
+        ListenerInfo listenerInfo = sListenerInfo.get(listenerClass);
+        if(listenerInfo == null) {
+
+            EventDispatcher dispatcher = EventDispatchers.find(listenerClass);
+            listenerInfo = dispatcher != null ? fromDispatcher(listenerClass, dispatcher) : fromMethods(listenerClass);
+            sListenerInfo.put(listenerClass, listenerInfo);
+        }
+        return listenerInfo;
+    }
+
+    Class<?> getListenerClass() {
+        return mListenerClass;
+    }
+
+    /**
+     * @return The events of every state the class has event methods for
+     */
+    Map<String, StateEvents> getStateEvents() {
+        return mStateEvents;
+    }
+
+    List<GuardMethod> getGuardMethods() {
+        return mGuardMethods;
+    }
+
+
+    // region Scanning
+    /**
+     * Build from the generated dispatcher (no reflection)
+     */
+    private static ListenerInfo fromDispatcher(Class<?> listenerClass, EventDispatcher dispatcher) {
+
+        Map<String, StateEvents> stateEvents = new LinkedHashMap<>();
+
+        String[] onEnterStates = dispatcher.getOnEnterStates();
+        String[] onEnterMethods = dispatcher.getOnEnterMethods();
+        for(int i = 0; i < onEnterStates.length; i++) {
+
+            StateEvents events = getOrCreate(stateEvents, listenerClass, onEnterStates[i]);
+            events.mOnEnterHandler = new GeneratedEventHandler(dispatcher, i, true);
+            events.mOnEnterMethodName = onEnterMethods[i];
+        }
+
+        String[] onExitStates = dispatcher.getOnExitStates();
+        String[] onExitMethods = dispatcher.getOnExitMethods();
+        for(int i = 0; i < onExitStates.length; i++) {
+
+            StateEvents events = getOrCreate(stateEvents, listenerClass, onExitStates[i]);
+            events.mOnExitHandler = new GeneratedEventHandler(dispatcher, i, false);
+            events.mOnExitMethodName = onExitMethods[i];
+        }
+
+        List<GuardMethod> guardMethods = new ArrayList<>();
+        String[] guardTransitions = dispatcher.getGuardTransitions();
+        for(int i = 0; i < guardTransitions.length / 2; i++) {
+            guardMethods.add(new GuardMethod(guardTransitions[i * 2], guardTransitions[i * 2 + 1], new GeneratedGuardHandler(dispatcher, i)));
+        }
+
+        return new ListenerInfo(listenerClass, stateEvents, guardMethods);
+    }
+
+    /**
+     * Build with a single pass over the declared methods of the class
+     */
+    private static ListenerInfo fromMethods(Class<?> listenerClass) {
+
+        Map<String, StateEvents> stateEvents = new LinkedHashMap<>();
+        List<Method> guards = new ArrayList<>();
+
+        for(Method method : listenerClass.getDeclaredMethods()) {
+
+            OnEnter onEnter = method.getAnnotation(OnEnter.class);
+            if(onEnter != null) {
+
+                StateEvents events = getOrCreate(stateEvents, listenerClass, onEnter.state());
+                if(events.mOnEnterMethod != null) {
+                    Log.w(TAG, "OnEnter method on class " + listenerClass.getSimpleName() + " for state " + onEnter.state() + " already exists, being overwritten...");
+                }
+                events.mOnEnterMethod = method;
+                events.mOnEnterHandler = ReflectiveEventHandler.get(method);
+            }
+
+            OnExit onExit = method.getAnnotation(OnExit.class);
+            if(onExit != null) {
+
+                StateEvents events = getOrCreate(stateEvents, listenerClass, onExit.state());
+                if(events.mOnExitMethod != null) {
+                    Log.w(TAG, "OnExit method on class " + listenerClass.getSimpleName() + " for state " + onExit.state() + " already exists, being overwritten...");
+                }
+                events.mOnExitMethod = method;
+                events.mOnExitHandler = ReflectiveEventHandler.get(method);
+            }
+
+            Guard guard = method.getAnnotation(Guard.class);
+            if(guard != null) {
+
+                if(method.getReturnType() != boolean.class || method.getParameterTypes().length > 0) {
+                    Log.w(TAG, "Guard method " + method.getName() + " on class " + listenerClass.getSimpleName() + " must return boolean and take no arguments, ignored");
+                }
+                else {
+                    guards.add(method);
+                }
+            }
+        }
+
+        Collections.sort(guards, METHOD_NAME_ORDER);
+        List<GuardMethod> guardMethods = new ArrayList<>();
+        for(Method method : guards) {
+
+            Guard guard = method.getAnnotation(Guard.class);
+            guardMethods.add(new GuardMethod(guard.from(), guard.to(), new ReflectiveGuardHandler(method)));
+        }
+
+        return new ListenerInfo(listenerClass, stateEvents, guardMethods);
+    }
+
+    private static StateEvents getOrCreate(Map<String, StateEvents> stateEvents, Class<?> listenerClass, String state) {
+
+        StateEvents events = stateEvents.get(state);
+        if(events == null) {
+
+            events = new StateEvents(listenerClass);
+            stateEvents.put(state, events);
+        }
+        return events;
+    }
+    // endregion
+
+
+    /**
+     * A guard method of a listener class and the transition it guards
+     */
+    static final class GuardMethod {
+
+        private final String mFromState;
+        private final String mToState;
+        private final GuardHandler mHandler;
+
+        private GuardMethod(String fromState, String toState, GuardHandler handler) {
+            mFromState = fromState;
+            mToState = toState;
+            mHandler = handler;
+        }
+
+        String getFromState() {
+            return mFromState;
+        }
+
+        String getToState() {
+            return mToState;
+        }
+
+        GuardHandler getHandler() {
+            return mHandler;
+        }
+    }
+
+    /**
+     * The OnEnter / OnExit events of a listener class for a single state (either may be null)
+     */
+    static final class StateEvents {
+
+        private final Class<?> mListenerClass;
+
+        private EventHandler mOnEnterHandler;
+        private EventHandler mOnExitHandler;
+
+        /**
+         * When called through a generated {@link EventDispatcher}, the Method objects are only looked up by name if requested
+         */
+        private volatile Method mOnEnterMethod;
+        private volatile Method mOnExitMethod;
+        private String mOnEnterMethodName;
+        private String mOnExitMethodName;
+
+        private StateEvents(Class<?> listenerClass) {
+            mListenerClass = listenerClass;
+        }
+
+        EventHandler getOnEnterHandler() {
+            return mOnEnterHandler;
+        }
+
+        EventHandler getOnExitHandler() {
+            return mOnExitHandler;
+        }
+
+        Method getOnEnterMethod() {
+
+            if(mOnEnterMethod == null && mOnEnterMethodName != null) {
+                mOnEnterMethod = getDeclaredMethod(mOnEnterMethodName);
+            }
+            return mOnEnterMethod;
+        }
+
+        Method getOnExitMethod() {
+
+            if(mOnExitMethod == null && mOnExitMethodName != null) {
+                mOnExitMethod = getDeclaredMethod(mOnExitMethodName);
+            }
+            return mOnExitMethod;
+        }
+
+        private Method getDeclaredMethod(String name) {
+
+            try {
+                return mListenerClass.getDeclaredMethod(name);
+            } catch (NoSuchMethodException e) {
+                Log.e(TAG, "Event method " + name + " not found on class " + mListenerClass.getSimpleName(), e);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.metova.finiteflow;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps everything in memory (for tests / benchmarks, or flows that only need to survive passivation within the process)
+ */
+public class MemoryStorageBackend implements StorageBackend {
+
+    private final ConcurrentMap<String, byte[]> mData = new ConcurrentHashMap<>();
+
+    @Override
+    public void write(@NonNull String key, @NonNull ByteBuffer data) {
+
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        mData.put(key, bytes);
+    }
+
+    @Override
+    public ByteBuffer read(@NonNull String key) {
+
+        byte[] bytes = mData.get(key);
+        return bytes != null ? ByteBuffer.wrap(bytes) : null;
+    }
+
+    @Override
+    public boolean delete(@NonNull String key) {
+        return mData.remove(key) != null;
+    }
+}
@@ -0,0 +1,16 @@
+package com.metova.finiteflow;
+
+import java.util.List;
+
+/**
+ * Notified of the states a burst of coalesced transitions went through without calling their events
+ * (see {@link FiniteFlow#setEventCoalescing(long, OnStatesSkippedListener)})
+ */
+public interface OnStatesSkippedListener {
+
+    /**
+     * @param flow The flow that moved
+     * @param skippedStates States entered and left within the burst, in order (a state appears once per visit)
+     */
+    void onStatesSkipped(FiniteFlow flow, List<String> skippedStates);
+}
@@ -0,0 +1,23 @@
+package com.metova.finiteflow;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Background thread shared by journaled / write-behind persistence (see {@link FlowJournal}, {@link WriteBehind}), created on first use
+ */
+final class PersistenceExecutor {
+
+    static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "FiniteFlow-persistence");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private PersistenceExecutor() {}
+}
@@ -4,22 +4,35 @@ import android.content.Context;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 
+/**
+ * Flows are stored in the compact {@link FlowFormat} through a {@link StorageBackend}, flows written by older versions (Java
+ * serialization) can still be read
+ * Journaled flows are written once, then only their state changes are appended (see {@link FlowJournal})
+ */
 public class PersistenceUtil {
 
     private static final String TAG = PersistenceUtil.class.getSimpleName();
     private static final String SUFFIX = "_flow";
 
     enum PERSIST_TYPE {
+        /**
+         * {@link FileStorageBackend}
+         */
         TYPE_DISK,
-        TYPE_SHARED_PREFS
+
+        /**
+         * {@link SharedPreferencesStorageBackend} (default preferences name)
+         */
+        TYPE_SHARED_PREFS,
+
+        /**
+         * Snapshot + append-only journal of the state changes, kept up to date from the first persist on
+         */
+        TYPE_JOURNAL
     }
 
     /**
@@ -30,15 +43,25 @@ public class PersistenceUtil {
      */
     public static boolean persistFlow(Context context, PERSIST_TYPE persistType, FiniteFlow flow) {
 
-        switch (persistType) {
-
-            case TYPE_DISK:
+        if(persistType == PERSIST_TYPE.TYPE_JOURNAL) { return persistJournal(context, flow); }
 
-                return persistDisk(context, flow);
+        StorageBackend backend = getBackend(context, persistType);
+        return backend != null && persistFlow(backend, flow);
+    }
 
-            case TYPE_SHARED_PREFS:
+    /**
+     * Persist an instance of a flow
+     * @param backend Where to store the flow
+     * @param flow The flow to persist
+     * @return If the persistence was successful or not
+     */
+    public static boolean persistFlow(StorageBackend backend, FiniteFlow flow) {
 
-                return persistSharedPrefs(context, flow);
+        try {
+            backend.write(flow.getIdentifier() + SUFFIX, FlowFormat.encode(flow));
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception in persistFlow", e);
         }
 
         return false;
@@ -46,105 +69,188 @@ public class PersistenceUtil {
 
     public static FiniteFlow readFlow(Context context, PERSIST_TYPE persistType, String flowIdentifier) {
 
-        switch (persistType) {
+        if(persistType == PERSIST_TYPE.TYPE_JOURNAL) { return readJournal(context, flowIdentifier); }
 
-            case TYPE_DISK:
+        StorageBackend backend = getBackend(context, persistType);
+        return backend != null ? readFlow(backend, flowIdentifier) : null;
+    }
 
-                return readDisk(context, flowIdentifier);
+    /**
+     * Read a persisted flow
+     * @param backend Where the flow was stored
+     * @param flowIdentifier Identifier of the flow
+     * @return The flow, null if it was not persisted / could not be read
+     */
+    public static FiniteFlow readFlow(StorageBackend backend, String flowIdentifier) {
 
-            case TYPE_SHARED_PREFS:
+        try {
+            ByteBuffer buffer = backend.read(flowIdentifier + SUFFIX);
+            if(buffer == null) {
+                Log.w(TAG, "No persisted flow for " + flowIdentifier);
+                return null;
+            }
 
-                return readSharedPrefs(context, flowIdentifier);
+            // Flows persisted before the binary format are Java-serialized
+            return FlowFormat.isFlowFormat(buffer) ? FlowFormat.decode(buffer) : deserialize(buffer);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Exception in readFlow", e);
+        }
+        catch (ClassNotFoundException e) {
+            Log.e(TAG, "Exception in readFlow", e);
         }
 
         return null;
     }
 
-    private static boolean persistDisk(Context context, FiniteFlow flow) {
+    /**
+     * Read a persisted flow without decoding it (flows persisted before the binary format are converted)
+     * @return The flow in {@link FlowFormat}, null if it was not persisted / could not be read
+     */
+    static ByteBuffer readEncodedFlow(StorageBackend backend, String flowIdentifier) {
 
-        FileOutputStream fos = null;
         try {
-            fos = context.openFileOutput(flow.getIdentifier() + SUFFIX, Context.MODE_PRIVATE);
-            fos.write(serialize(flow));
-            fos.close();
-            return true;
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "Exception in persistDisk", e);
-        } catch (IOException e) {
-            Log.e(TAG, "Exception in persistDisk", e);
+            ByteBuffer buffer = backend.read(flowIdentifier + SUFFIX);
+            if(buffer == null || FlowFormat.isFlowFormat(buffer)) { return buffer; }
+
+            return FlowFormat.encode(deserialize(buffer));
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Exception in readEncodedFlow", e);
+        }
+        catch (ClassNotFoundException e) {
+            Log.e(TAG, "Exception in readEncodedFlow", e);
         }
 
-        return false;
+        return null;
     }
 
-    private static boolean persistSharedPrefs(Context context, FiniteFlow flow) {
+    /**
+     * Delete a persisted flow
+     * @param persistType How the flow was persisted
+     * @param flowIdentifier Identifier of the flow
+     * @return If a persisted flow was deleted
+     */
+    public static boolean deleteFlow(Context context, PERSIST_TYPE persistType, String flowIdentifier) {
+
+        if(persistType == PERSIST_TYPE.TYPE_JOURNAL) { return FlowJournal.delete(context, flowIdentifier); }
 
-        // TODO: Implement this (need a way to serialize / deserialize via the SharedPrefs)
-        Log.w(TAG, "persistSharedPrefs not implemented yet!");
-        return false;
+        StorageBackend backend = getBackend(context, persistType);
+        return backend != null && deleteFlow(backend, flowIdentifier);
+    }
+
+    /**
+     * Delete a persisted flow
+     * @param backend Where the flow was stored
+     * @param flowIdentifier Identifier of the flow
+     * @return If a persisted flow was deleted
+     */
+    public static boolean deleteFlow(StorageBackend backend, String flowIdentifier) {
+        return backend.delete(flowIdentifier + SUFFIX);
+    }
+
+    /**
+     * Persist the flow automatically from now on: each state change marks it dirty, and a background thread writes it at most once
+     * per interval (bursts of changes are coalesced into one write, an unchanged flow is not written again)
+     * The flow is written once initially, calling this again replaces its backend / interval
+     * @param persistType How to persist the flow ({@link PERSIST_TYPE#TYPE_JOURNAL} writes every change already)
+     * @param intervalMillis Minimum time between writes of the flow
+     * @throws IllegalStateException If the flow is journaled
+     */
+    public static void setWriteBehind(Context context, PERSIST_TYPE persistType, FiniteFlow flow, long intervalMillis) {
+
+        StorageBackend backend = getBackend(context, persistType);
+        if(backend == null) { throw new IllegalArgumentException("Write-behind is not supported for " + persistType); }
+
+        setWriteBehind(backend, flow, intervalMillis);
     }
 
-    private static FiniteFlow readDisk(Context context, String flowIdentifier) {
+    /**
+     * Persist the flow automatically from now on, see {@link #setWriteBehind(Context, PERSIST_TYPE, FiniteFlow, long)}
+     * @param backend Where to store the flow
+     * @param intervalMillis Minimum time between writes of the flow
+     * @throws IllegalStateException If the flow is journaled
+     */
+    public static void setWriteBehind(StorageBackend backend, FiniteFlow flow, long intervalMillis) {
+        WriteBehind.attach(backend, flow, intervalMillis);
+    }
 
-        FileInputStream fis = null;
-        FiniteFlow finiteFlow = null;
+    /**
+     * Stop persisting the flow automatically, writing its pending changes (on the calling thread)
+     * @return If there were no pending changes or they were written
+     */
+    public static boolean stopWriteBehind(FiniteFlow flow) {
+        return WriteBehind.detach(flow);
+    }
 
-        try {
-            fis = context.openFileInput(flowIdentifier + SUFFIX);
-            int size = (int) fis.getChannel().size();
-            byte[] bytes = new byte[size];
-            byte tmpBuff[] = new byte[size];
-
-            int read = fis.read(bytes, 0, size);
-            if (read < size) {
-                int remain = size - read;
-                while (remain > 0) {
-                    read = fis.read(tmpBuff, 0, remain);
-                    System.arraycopy(tmpBuff, 0, bytes, size - remain, read);
-                    remain -= read;
-                }
-            }
+    private static StorageBackend getBackend(Context context, PERSIST_TYPE persistType) {
 
-            finiteFlow = deserialize(bytes);
-        }
-        catch (FileNotFoundException e) {
-            Log.e(TAG, "Exception in readDisk", e);
-        }
-        catch (IOException e) {
-            Log.e(TAG, "Exception in readDisk", e);
+        switch (persistType) {
+
+            case TYPE_DISK:
+
+                return new FileStorageBackend(context);
+
+            case TYPE_SHARED_PREFS:
+
+                return new SharedPreferencesStorageBackend(context);
         }
-        catch (ClassNotFoundException e) {
-            Log.e(TAG, "Exception in readDisk", e);
-        } finally {
-            if(fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Exception in readDisk", e);
-                }
+
+        return null;
+    }
+
+    /**
+     * Write the flow's snapshot and start journaling its state changes, or sync the journal if it already is
+     */
+    private static boolean persistJournal(Context context, FiniteFlow flow) {
+
+        try {
+            StateChangeListener listener = flow.getStateChangeListener();
+            if(listener instanceof FlowJournal && ((FlowJournal) listener).isOpen()) {
+                ((FlowJournal) listener).sync();
+            }
+            else {
+                FlowJournal.open(context, flow);
             }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception in persistJournal", e);
         }
 
-        return finiteFlow;
+        return false;
     }
 
-    private static FiniteFlow readSharedPrefs(Context context, String flowIdentifier) {
+    private static FiniteFlow readJournal(Context context, String flowIdentifier) {
+
+        try {
+            return FlowJournal.recover(context, flowIdentifier);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception in readJournal", e);
+        }
 
-        // TODO: Implement this (need a way to serialize / deserialize via the SharedPrefs)
-        Log.w(TAG, "readSharedPrefs not implemented yet!");
         return null;
     }
 
 
     // region Serialization
-    private static byte[] serialize(FiniteFlow flow) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ObjectOutputStream os = new ObjectOutputStream(out);
-        os.writeObject(flow);
-        return out.toByteArray();
-    }
-    private static FiniteFlow deserialize(byte[] data) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
+    /**
+     * Read a flow written with Java serialization
+     */
+    private static FiniteFlow deserialize(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+
+        byte[] data;
+        int offset;
+        if(buffer.hasArray()) {
+            data = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        }
+        else {
+            data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            offset = 0;
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(data, offset, buffer.remaining());
         ObjectInputStream is = new ObjectInputStream(in);
         return (FiniteFlow) is.readObject();
     }
@@ -0,0 +1,64 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Calls an event method via reflection (used when no {@link EventDispatcher} was generated for its class)
+ * Exceptions thrown by the method are logged, as with {@link GeneratedEventHandler}
+ * The Method is prepared once (access checks suppressed, shared argument array) and the handler is cached,
+ * so every flow using the same listener class shares it
+ */
+final class ReflectiveEventHandler implements EventHandler {
+
+    private static final String TAG = ReflectiveEventHandler.class.getSimpleName();
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private static final Map<Method, ReflectiveEventHandler> sHandlers = new ConcurrentHashMap<>();
+
+    private final Method mMethod;
+
+    private ReflectiveEventHandler(Method method) {
+        mMethod = method;
+    }
+
+    /**
+     * @return The (shared) handler for the event method
+     */
+    static ReflectiveEventHandler get(Method method) {
+
+        ReflectiveEventHandler handler = sHandlers.get(method);
+        if(handler == null) {
+
+            try {
+                method.setAccessible(true);
+            }
+            catch (SecurityException e) {
+                Log.w(TAG, "Unable to suppress access checks for " + method.getName() + ", calling it with checks", e);
+            }
+
+            handler = new ReflectiveEventHandler(method);
+            sHandlers.put(method, handler);
+        }
+        return handler;
+    }
+
+    @Override
+    public void call(Object instance) {
+
+        try {
+            mMethod.invoke(instance, NO_ARGS);
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "Unable to call event method " + mMethod.getName(), e);
+        } catch (InvocationTargetException e) {
+            // Same as the generated dispatchers: exceptions are logged, errors are not caught
+            if(e.getCause() instanceof Error) { throw (Error) e.getCause(); }
+            Log.e(TAG, "Exception in event method " + mMethod.getName(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Calls a guard method via reflection (used when no {@link EventDispatcher} was generated for its class)
+ * An exception thrown by the method is logged and refuses the transition, as with {@link GeneratedGuardHandler}
+ * The result is boxed by Method.invoke (to the cached Boolean instances, so nothing is allocated)
+ */
+final class ReflectiveGuardHandler implements GuardHandler {
+
+    private static final String TAG = ReflectiveGuardHandler.class.getSimpleName();
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final Method mMethod;
+
+    ReflectiveGuardHandler(Method method) {
+
+        try {
+            method.setAccessible(true);
+        }
+        catch (SecurityException e) {
+            Log.w(TAG, "Unable to suppress access checks for " + method.getName() + ", calling it with checks", e);
+        }
+        mMethod = method;
+    }
+
+    @Override
+    public boolean check(Object instance) {
+
+        try {
+            return (Boolean) mMethod.invoke(instance, NO_ARGS);
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "Unable to call guard method " + mMethod.getName(), e);
+        } catch (InvocationTargetException e) {
+            // Same as the generated dispatchers: exceptions are logged (refusing the transition), errors are not caught
+            if(e.getCause() instanceof Error) { throw (Error) e.getCause(); }
+            Log.e(TAG, "Exception in guard method " + mMethod.getName(), e.getCause());
+        }
+        return false;
+    }
+}
@@ -0,0 +1,128 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on an underlying executor (which may be shared / have many threads)
+ * Used to call a flow's events off the transitioning thread while keeping their order (see {@link FiniteFlow#setEventExecutor(Executor)})
+ */
+final class SerialExecutor implements Executor {
+
+    private static final String TAG = SerialExecutor.class.getSimpleName();
+
+    /**
+     * Runs the tasks on the submitting thread (still after the tasks queued before them)
+     */
+    static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    // Guarded by this
+    private Executor mExecutor;
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRunning;
+
+    /**
+     * Runs the queued tasks until there are none left (submitted once per burst of tasks rather than once per task)
+     */
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+
+            while(true) {
+
+                Runnable task;
+                synchronized (SerialExecutor.this) {
+
+                    task = mTasks.poll();
+                    if(task == null) {
+                        mRunning = false;
+                        return;
+                    }
+                }
+
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                }
+                catch (RuntimeException e) {
+                    // The following tasks still run
+                    Log.e(TAG, "Exception in a task", e);
+                    completed = true;
+                }
+                finally {
+                    if(!completed) {
+                        // An Error leaves this drain, the following tasks run in a new one
+                        synchronized (SerialExecutor.this) {
+                            mRunning = false;
+                        }
+                        resume();
+                    }
+                }
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    synchronized Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Run the following tasks on another executor, after the tasks already queued (which are run where they were going to be)
+     */
+    synchronized void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+
+        enqueue(task);
+        resume();
+    }
+
+    /**
+     * Queue the task without running it, {@link #resume()} must be called afterwards (without holding the lock)
+     * Lets a caller holding the lock queue tasks atomically with its own changes
+     */
+    synchronized void enqueue(Runnable task) {
+        mTasks.add(task);
+    }
+
+    /**
+     * Submit the drain task if there are queued tasks and none is running
+     */
+    void resume() {
+
+        Executor executor;
+        synchronized (this) {
+
+            if(mRunning || mTasks.isEmpty()) { return; }
+            mRunning = true;
+            executor = mExecutor;
+        }
+
+        // Submitted without holding the lock, as inline executors run the tasks right away
+        try {
+            executor.execute(mDrainTask);
+        }
+        catch (RuntimeException e) {
+            synchronized (this) {
+                mTasks.clear();
+                mRunning = false;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.metova.finiteflow;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.util.Base64;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stores each key as a Base64 string in a SharedPreferences file
+ * Writes are applied asynchronously (batched to disk by SharedPreferences), reads are served from its memory
+ */
+public class SharedPreferencesStorageBackend implements StorageBackend {
+
+    public static final String DEFAULT_PREFERENCES_NAME = "finiteflow";
+
+    private final SharedPreferences mPreferences;
+
+    public SharedPreferencesStorageBackend(@NonNull Context context) {
+        this(context, DEFAULT_PREFERENCES_NAME);
+    }
+
+    public SharedPreferencesStorageBackend(@NonNull Context context, @NonNull String preferencesName) {
+        mPreferences = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public void write(@NonNull String key, @NonNull ByteBuffer data) throws IOException {
+
+        String value;
+        if(data.hasArray()) {
+            value = Base64.encodeToString(data.array(), data.arrayOffset() + data.position(), data.remaining(), Base64.NO_WRAP);
+        }
+        else {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            value = Base64.encodeToString(bytes, Base64.NO_WRAP);
+        }
+        data.position(data.limit());
+
+        mPreferences.edit().putString(key, value).apply();
+    }
+
+    @Override
+    public ByteBuffer read(@NonNull String key) throws IOException {
+
+        String value = mPreferences.getString(key, null);
+        if(value == null) { return null; }
+
+        try {
+            return ByteBuffer.wrap(Base64.decode(value, Base64.NO_WRAP));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid Base64 for " + key, e);
+        }
+    }
+
+    @Override
+    public boolean delete(@NonNull String key) {
+
+        if(!mPreferences.contains(key)) { return false; }
+
+        mPreferences.edit().remove(key).apply();
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+package com.metova.finiteflow;
+
+/**
+ * Internal hook notified after every change of a flow's current state / history (used by persistence)
+ * With the default (locked) transitions it is called holding the flow's lock, in the order the changes were made; with lock-free
+ * transitions (see {@link FiniteFlow#setConcurrent(boolean)}) it is called after the commit, and changes made at the same time may
+ * be reported in any order
+ */
+interface StateChangeListener {
+
+    /**
+     * Moved with the transition (id), which was pushed on the history
+     */
+    int CHANGE_MOVE_PUSH = 0;
+
+    /**
+     * Moved with the transition (id), the history did not change (collapsed self-loop)
+     */
+    int CHANGE_MOVE = 1;
+
+    /**
+     * Moved with the transition (id), which reversed the latest transition of the history and popped it (collapsed cycle)
+     */
+    int CHANGE_MOVE_POP = 2;
+
+    /**
+     * Moved back through the history, popping the transition (id)
+     */
+    int CHANGE_BACK = 3;
+
+    /**
+     * The current state (id) was set directly, the history did not change
+     */
+    int CHANGE_SET_STATE = 4;
+
+    /**
+     * The states / transitions changed (id unused), so ids reported before may no longer apply
+     */
+    int CHANGE_SETUP = 5;
+
+    void onStateChanged(FiniteFlow flow, int change, int id);
+}
@@ -0,0 +1,117 @@
+package com.metova.finiteflow;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Every registered OnEnter / OnExit listener of a single state (used when event fan-out is enabled)
+ * The arrays are immutable and replaced on register / unregister (copy-on-write), so dispatch reads them without locking
+ */
+final class StateListeners {
+
+    static final Listener[] NONE = new Listener[0];
+
+    private volatile Listener[] mOnEnterListeners = NONE;
+    private volatile Listener[] mOnExitListeners = NONE;
+
+    Listener[] getOnEnterListeners() {
+        return mOnEnterListeners;
+    }
+
+    Listener[] getOnExitListeners() {
+        return mOnExitListeners;
+    }
+
+    /**
+     * Add the instance for the given events
+     * @param weak If the instance should only be weakly held
+     */
+    synchronized void add(ListenerInfo.StateEvents events, Object instance, boolean weak) {
+
+        if(events.getOnEnterHandler() != null) {
+            mOnEnterListeners = added(mOnEnterListeners, new Listener(events.getOnEnterHandler(), instance, weak));
+        }
+        if(events.getOnExitHandler() != null) {
+            mOnExitListeners = added(mOnExitListeners, new Listener(events.getOnExitHandler(), instance, weak));
+        }
+    }
+
+    /**
+     * Remove every listener of the instance
+     */
+    synchronized void remove(Object instance) {
+
+        mOnEnterListeners = removed(mOnEnterListeners, instance);
+        mOnExitListeners = removed(mOnExitListeners, instance);
+    }
+
+    /**
+     * Remove the weakly held listeners that have been collected
+     */
+    synchronized void removeStale() {
+
+        mOnEnterListeners = removed(mOnEnterListeners, null);
+        mOnExitListeners = removed(mOnExitListeners, null);
+    }
+
+    private static Listener[] added(Listener[] listeners, Listener listener) {
+
+        for(Listener existing : listeners) {
+            if(existing.getInstance() == listener.getInstance() && existing.mHandler == listener.mHandler) { return listeners; }
+        }
+
+        Listener[] updated = new Listener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        return updated;
+    }
+
+    private static Listener[] removed(Listener[] listeners, Object instance) {
+
+        int count = 0;
+        for(Listener listener : listeners) {
+            if(listener.getInstance() != instance) { count++; }
+        }
+        if(count == listeners.length) { return listeners; }
+        if(count == 0) { return NONE; }
+
+        Listener[] updated = new Listener[count];
+        int i = 0;
+        for(Listener listener : listeners) {
+            if(listener.getInstance() != instance) { updated[i++] = listener; }
+        }
+        return updated;
+    }
+
+
+    /**
+     * A registered (strongly or weakly held) instance paired with the handler to call on it
+     */
+    static final class Listener {
+
+        final EventHandler mHandler;
+        private final Object mInstance;
+        private final WeakReference<Object> mWeakInstance;
+
+        Listener(EventHandler handler, Object instance, boolean weak) {
+            mHandler = handler;
+            mInstance = weak ? null : instance;
+            mWeakInstance = weak ? new WeakReference<>(instance) : null;
+        }
+
+        Object getInstance() {
+            return mWeakInstance != null ? mWeakInstance.get() : mInstance;
+        }
+
+        /**
+         * @return False if the instance was weakly held and has been collected (nothing was called)
+         */
+        boolean call() {
+
+            Object instance = getInstance();
+            if(instance == null) { return false; }
+
+            mHandler.call(instance);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.metova.finiteflow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where persisted flows are stored (see {@link PersistenceUtil#persistFlow(StorageBackend, FiniteFlow)})
+ * Flows are stored as the bytes of their {@link FlowFormat} under a key derived from their identifier
+ */
+public interface StorageBackend {
+
+    /**
+     * Store the bytes (from the buffer's position to its limit) under the key, replacing anything stored before
+     */
+    void write(@NonNull String key, @NonNull ByteBuffer data) throws IOException;
+
+    /**
+     * @return The bytes stored under the key, null if there are none
+     */
+    @Nullable
+    ByteBuffer read(@NonNull String key) throws IOException;
+
+    /**
+     * @return If anything was stored under the key
+     */
+    boolean delete(@NonNull String key);
+}
@@ -0,0 +1,15 @@
+package com.metova.finiteflow;
+
+/**
+ * Condition of a transition, checked before it is taken (see {@link FiniteFlow#addGuard(String, String, TransitionGuard)})
+ * Guards are called for every attempt to take their transition (holding the instance lock, unless transitions are lock-free),
+ * so they should be fast and must not move the flow
+ */
+public interface TransitionGuard {
+
+    /**
+     * @param flow The flow about to take the transition
+     * @return If the transition can be taken
+     */
+    boolean isAllowed(FiniteFlow flow);
+}
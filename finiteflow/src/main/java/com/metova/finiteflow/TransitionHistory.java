@@ -0,0 +1,142 @@
+package com.metova.finiteflow;
+
+import java.util.Stack;
+
+/**
+ * History of the transitions taken by a flow, stored as {@link TransitionTable} transition ids in a ring buffer
+ * With a capacity, the oldest transitions are dropped once it is full; without one, the buffer grows as needed
+ * Not thread-safe, guarded by the owning flow
+ */
+final class TransitionHistory {
+
+    private static final int INITIAL_SIZE = 8;
+
+    private int[] mTransitionIds;
+
+    /**
+     * Index of the oldest transition in mTransitionIds
+     */
+    private int mStart;
+    private int mSize;
+
+    /**
+     * Maximum number of transitions kept, 0 for no maximum
+     */
+    private int mCapacity;
+
+    TransitionHistory(int capacity) {
+        mCapacity = capacity;
+        mTransitionIds = new int[capacity > 0 ? Math.min(capacity, INITIAL_SIZE) : INITIAL_SIZE];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @param index Index of the transition, 0 being the oldest one kept
+     */
+    int get(int index) {
+        return mTransitionIds[(mStart + index) % mTransitionIds.length];
+    }
+
+    /**
+     * @return The latest transition id, {@link TransitionTable#NO_ID} if empty
+     */
+    int peek() {
+        return mSize > 0 ? get(mSize - 1) : TransitionTable.NO_ID;
+    }
+
+    void push(int transitionId) {
+
+        if(mCapacity > 0 && mSize == mCapacity) {
+
+            // Full, overwrite the oldest
+            mTransitionIds[mStart] = transitionId;
+            mStart = (mStart + 1) % mTransitionIds.length;
+            return;
+        }
+
+        if(mSize == mTransitionIds.length) {
+            resize(mCapacity > 0 ? Math.min(mCapacity, mSize * 2) : mSize * 2);
+        }
+        mTransitionIds[(mStart + mSize) % mTransitionIds.length] = transitionId;
+        mSize++;
+    }
+
+    /**
+     * Make room for pushing the transitions without growing the buffer more than once
+     */
+    void reserve(int count) {
+
+        int length = mSize + count;
+        if(mCapacity > 0) { length = Math.min(length, mCapacity); }
+        if(length > mTransitionIds.length) {
+            resize(Math.max(length, mCapacity > 0 ? Math.min(mCapacity, mTransitionIds.length * 2) : mTransitionIds.length * 2));
+        }
+    }
+
+    /**
+     * @return The latest transition id (removed), {@link TransitionTable#NO_ID} if empty
+     */
+    int pop() {
+
+        if(mSize == 0) { return TransitionTable.NO_ID; }
+
+        int transitionId = peek();
+        mSize--;
+        return transitionId;
+    }
+
+    void clear() {
+        mStart = 0;
+        mSize = 0;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Change the maximum number of transitions kept, dropping the oldest ones if there are more
+     * @param capacity New capacity, 0 for no maximum
+     */
+    void setCapacity(int capacity) {
+
+        mCapacity = capacity;
+        if(capacity > 0 && mSize > capacity) {
+
+            mStart = (mStart + mSize - capacity) % mTransitionIds.length;
+            mSize = capacity;
+        }
+        if(capacity > 0 && mTransitionIds.length > capacity) {
+            resize(capacity);
+        }
+    }
+
+    private void resize(int length) {
+
+        int[] transitionIds = new int[length];
+        for(int i = 0; i < mSize; i++) {
+            transitionIds[i] = get(i);
+        }
+        mTransitionIds = transitionIds;
+        mStart = 0;
+    }
+
+    /**
+     * @return The transitions as a new Stack (oldest at the bottom)
+     */
+    Stack<Transition> toStack(TransitionTable table) {
+
+        Stack<Transition> stack = new Stack<>();
+        for(int i = 0; i < mSize; i++) {
+            stack.push(table.getTransition(get(i)));
+        }
+        return stack;
+    }
+}
@@ -0,0 +1,212 @@
+package com.metova.finiteflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled (read-only) form of a flow's states / transitions
+ * States are interned to dense int ids and (from, to) pairs are kept in an open-addressed table, so that
+ * looking up a transition by (from, to) or by name does not depend on the number of transitions
+ */
+final class TransitionTable {
+
+    static final int NO_ID = -1;
+
+    private final String[] mStateNames;
+    private final Map<String, Integer> mStateIds;
+
+    private final Transition[] mTransitions;
+    private final int[] mTransitionFrom;
+    private final int[] mTransitionTo;
+    private final Map<String, Integer> mTransitionsByName;
+
+    /**
+     * Pre-built (unmodifiable) views of the states reachable from each state
+     */
+    private final List<List<String>> mNextStates;
+
+    /**
+     * Open-addressed (from, to) -> transition id table, keyed without boxing
+     */
+    private final long[] mPairKeys;
+    private final int[] mPairValues;
+    private final int mPairMask;
+
+    private TransitionTable(List<String> states, List<Transition> transitions) {
+
+        int stateCount = states.size();
+        mStateNames = states.toArray(new String[stateCount]);
+        mStateIds = new HashMap<>(stateCount * 2);
+        for(int i = 0; i < stateCount; i++) {
+            mStateIds.put(mStateNames[i], i);
+        }
+
+        int transitionCount = transitions.size();
+        mTransitions = transitions.toArray(new Transition[transitionCount]);
+        mTransitionFrom = new int[transitionCount];
+        mTransitionTo = new int[transitionCount];
+        mTransitionsByName = new HashMap<>(transitionCount * 2);
+
+        mPairMask = tableSizeFor(transitionCount * 2) - 1;
+        mPairKeys = new long[mPairMask + 1];
+        mPairValues = new int[mPairMask + 1];
+        Arrays.fill(mPairValues, NO_ID);
+
+        int[] outDegree = new int[stateCount];
+        for(int i = 0; i < transitionCount; i++) {
+
+            Transition transition = mTransitions[i];
+            mTransitionFrom[i] = mStateIds.get(transition.getFromState());
+            mTransitionTo[i] = mStateIds.get(transition.getToState());
+            outDegree[mTransitionFrom[i]]++;
+
+            // Names are implied by the states, so keep the first match like the old linear scan did
+            String name = transition.getTransitionName();
+            if(!mTransitionsByName.containsKey(name)) {
+                mTransitionsByName.put(name, i);
+            }
+
+            putPair(mTransitionFrom[i], mTransitionTo[i], i);
+        }
+
+        // Outgoing edges of state i are edgeTransitions[edgeOffsets[i] .. edgeOffsets[i + 1]), in declaration order
+        int[] edgeOffsets = new int[stateCount + 1];
+        for(int i = 0; i < stateCount; i++) {
+            edgeOffsets[i + 1] = edgeOffsets[i] + outDegree[i];
+        }
+
+        int[] edgeTransitions = new int[transitionCount];
+        int[] fill = Arrays.copyOf(edgeOffsets, stateCount);
+        for(int i = 0; i < transitionCount; i++) {
+            edgeTransitions[fill[mTransitionFrom[i]]++] = i;
+        }
+
+        mNextStates = new ArrayList<>(stateCount);
+        for(int i = 0; i < stateCount; i++) {
+
+            List<String> next = new ArrayList<>(outDegree[i]);
+            for(int e = edgeOffsets[i]; e < edgeOffsets[i + 1]; e++) {
+                next.add(mStateNames[mTransitionTo[edgeTransitions[e]]]);
+            }
+            mNextStates.add(Collections.unmodifiableList(next));
+        }
+    }
+
+    /**
+     * Compile the given states / transitions. Every transition MUST reference states within the given list.
+     */
+    static TransitionTable compile(List<String> states, List<Transition> transitions) {
+
+        return new TransitionTable(
+                states != null ? states : Collections.<String>emptyList(),
+                transitions != null ? transitions : Collections.<Transition>emptyList());
+    }
+
+
+    // region Lookups
+    int getStateCount() {
+        return mStateNames.length;
+    }
+
+    int getTransitionCount() {
+        return mTransitions.length;
+    }
+
+    int getStateId(String state) {
+
+        Integer id = mStateIds.get(state);
+        return id != null ? id : NO_ID;
+    }
+
+    String getStateName(int stateId) {
+        return mStateNames[stateId];
+    }
+
+    /**
+     * @return The id of the transition from -> to, or {@link #NO_ID} if it does not exist
+     */
+    int getTransitionId(int fromStateId, int toStateId) {
+
+        if(fromStateId < 0 || toStateId < 0) { return NO_ID; }
+
+        long key = pairKey(fromStateId, toStateId);
+        int index = hash(key) & mPairMask;
+        while(mPairValues[index] != NO_ID) {
+
+            if(mPairKeys[index] == key) {
+                return mPairValues[index];
+            }
+            index = (index + 1) & mPairMask;
+        }
+        return NO_ID;
+    }
+
+    /**
+     * @return The id of the transition with the given name (see {@link Transition#getTransitionName()}), or {@link #NO_ID}
+     */
+    int getTransitionId(String name) {
+
+        Integer id = mTransitionsByName.get(name);
+        return id != null ? id : NO_ID;
+    }
+
+    Transition getTransition(int transitionId) {
+        return mTransitions[transitionId];
+    }
+
+    int getFromStateId(int transitionId) {
+        return mTransitionFrom[transitionId];
+    }
+
+    int getToStateId(int transitionId) {
+        return mTransitionTo[transitionId];
+    }
+
+    /**
+     * @return An unmodifiable list of the states that can be moved to from the given state (shared, no allocation)
+     */
+    List<String> getNextStates(int stateId) {
+        return mNextStates.get(stateId);
+    }
+    // endregion
+
+
+    // region Pair table
+    private void putPair(int fromStateId, int toStateId, int transitionId) {
+
+        long key = pairKey(fromStateId, toStateId);
+        int index = hash(key) & mPairMask;
+        while(mPairValues[index] != NO_ID) {
+
+            // Duplicates are filtered by addTransition, but keep the first one regardless
+            if(mPairKeys[index] == key) { return; }
+            index = (index + 1) & mPairMask;
+        }
+        mPairKeys[index] = key;
+        mPairValues[index] = transitionId;
+    }
+
+    private static long pairKey(int fromStateId, int toStateId) {
+        return ((long) fromStateId << 32) | (toStateId & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+
+        int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int count) {
+
+        int size = 2;
+        while(size < count) {
+            size <<= 1;
+        }
+        return size;
+    }
+    // endregion
+}
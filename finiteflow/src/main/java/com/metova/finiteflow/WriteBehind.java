@@ -0,0 +1,106 @@
+package com.metova.finiteflow;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind persistence of a flow: state changes only mark it dirty, and a background thread writes dirty flows at most once
+ * per interval (bursts of changes are coalesced into one write, unchanged flows are not written)
+ */
+final class WriteBehind implements StateChangeListener {
+
+    private static final String TAG = WriteBehind.class.getSimpleName();
+
+    private final FiniteFlow mFlow;
+    private final StorageBackend mBackend;
+    private final long mIntervalMillis;
+
+    /**
+     * Changed since the last write, a write is scheduled while this is set
+     */
+    private final AtomicBoolean mDirty = new AtomicBoolean();
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private WriteBehind(StorageBackend backend, FiniteFlow flow, long intervalMillis) {
+        mFlow = flow;
+        mBackend = backend;
+        mIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Persist the flow with write-behind from now on (replacing its previous write-behind settings), it is written once initially
+     * @throws IllegalStateException If the flow is journaled
+     */
+    static WriteBehind attach(StorageBackend backend, FiniteFlow flow, long intervalMillis) {
+
+        if(intervalMillis < 0) { throw new IllegalArgumentException("The interval cannot be negative"); }
+
+        WriteBehind writeBehind = new WriteBehind(backend, flow, intervalMillis);
+        synchronized (flow) {
+
+            StateChangeListener listener = flow.getStateChangeListener();
+            if(listener != null && !(listener instanceof WriteBehind)) {
+                throw new IllegalStateException("The flow is already persisted with a journal");
+            }
+            flow.setStateChangeListener(writeBehind);
+        }
+        writeBehind.markDirty();
+        return writeBehind;
+    }
+
+    /**
+     * Stop persisting the flow with write-behind, writing its pending changes
+     * @return If there were no pending changes or they were written
+     */
+    static boolean detach(FiniteFlow flow) {
+
+        StateChangeListener listener;
+        synchronized (flow) {
+
+            listener = flow.getStateChangeListener();
+            if(!(listener instanceof WriteBehind)) { return true; }
+
+            flow.setStateChangeListener(null);
+        }
+        return ((WriteBehind) listener).flush();
+    }
+
+    @Override
+    public void onStateChanged(FiniteFlow flow, int change, int id) {
+        markDirty();
+    }
+
+    /**
+     * Write the flow if it changed since the last write
+     * @return If it did not change or was written
+     */
+    synchronized boolean flush() {
+
+        if(!mDirty.getAndSet(false)) { return true; }
+
+        // Changes made from here on mark it dirty again (and schedule the next write)
+        if(PersistenceUtil.persistFlow(mBackend, mFlow)) { return true; }
+
+        Log.w(TAG, "Write of " + mFlow.getIdentifier() + " failed");
+        if(mFlow.getStateChangeListener() == this) {
+            // Retried after the interval
+            markDirty();
+        }
+        return false;
+    }
+
+    private void markDirty() {
+
+        if(mDirty.compareAndSet(false, true)) {
+            PersistenceExecutor.EXECUTOR.schedule(mWriteTask, mIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}